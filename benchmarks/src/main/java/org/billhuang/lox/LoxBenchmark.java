@@ -0,0 +1,146 @@
+package org.billhuang.lox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description Throughput of each stage of the pipeline over the Lox programs in /corpus.
+ *
+ * Every stage is measured on its own: the input of a stage is produced once in setup by running
+ * the stages before it. The main method runs everything with the GC profiler, so the report has
+ * the allocation rate next to the throughput, and writes a JSON file to compare later runs to.
+ *
+ * @Data 2022/3/20 10:15
+ * @Author huangshb
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoxBenchmark {
+    @Param({"fib", "binary_trees", "string_concat", "method_calls", "closures", "nested_loops"})
+    String workload;
+
+    private String source;
+    private TokenBuffer tokens;
+    private List<Stmt> statements;
+    private List<Stmt> optimized;
+    private Interpreter interpreter;
+    private int slotCount;
+    private PrintStream out;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        source = read("/corpus/" + workload + ".lox");
+        tokens = new Scanner(source).scan();
+        statements = new Parser(tokens).parse();
+        interpreter = new Interpreter();
+        Resolver resolver = new Resolver(interpreter.globals);
+        resolver.resolve(statements);
+        slotCount = resolver.slotCount();
+        optimized = new Optimizer(resolver, true).optimize(statements);
+
+        // the workloads print their results, which would only measure the console
+        out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(out);
+    }
+
+    @Benchmark
+    public TokenBuffer scan() {
+        return new Scanner(source).scan();
+    }
+
+    @Benchmark
+    public List<Stmt> parse() {
+        return new Parser(tokens).parse();
+    }
+
+    @Benchmark
+    public Resolver resolve() {
+        Resolver resolver = new Resolver(interpreter.globals);
+        resolver.resolve(statements);
+        return resolver;
+    }
+
+    @Benchmark
+    public void interpret() {
+        interpreter.interpret(optimized, slotCount);
+    }
+
+    private static String read(String resource) throws IOException {
+        try (InputStream in = LoxBenchmark.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IOException("No workload " + resource);
+            }
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            int length;
+            while ((length = in.read(chunk)) != -1) {
+                buffer.write(chunk, 0, length);
+            }
+            return new String(buffer.toByteArray(), Charset.forName("UTF-8"));
+        }
+    }
+
+    /**
+     * Runs the benchmarks with allocation profiling and saves the results to lox-benchmarks.json.
+     * Any regular JMH command line option can be passed on top, e.g. a benchmark name filter.
+     */
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions options = new CommandLineOptions(args);
+        OptionsBuilder builder = new OptionsBuilder();
+        if (options.getIncludes().isEmpty()) {
+            builder.include(LoxBenchmark.class.getSimpleName());
+        }
+
+        new Runner(builder
+                .parent(options)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result("lox-benchmarks.json")
+                .build()).run();
+    }
+}
@@ -1,9 +0,0 @@
-package org.billhuang.lox;
-
-/**
- * @Description
- * @Data 2022/3/3 18:17
- * @Author huangshb
- **/
-public class BreakException extends RuntimeException {
-}
@@ -0,0 +1,18 @@
+package org.billhuang.lox;
+
+/**
+ * @Description A box holding a local variable that some closure captured.
+ *
+ * The frame that declares the variable and every closure that captured it point at the same cell,
+ * so an assignment through any of them is seen by all of them.
+ *
+ * @Data 2022/3/19 10:05
+ * @Author huangshb
+ **/
+final class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,30 @@
+package org.billhuang.lox;
+
+import java.util.List;
+
+/**
+ * @Description Native {@code clock()}, seconds since the epoch.
+ * @Data 2022/3/14 11:30
+ * @Author huangshb
+ **/
+class Clock implements LoxCallable {
+    @Override
+    public int arity() {
+        return 0;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return call0(interpreter);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return (double) System.currentTimeMillis() / 1000.0;
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
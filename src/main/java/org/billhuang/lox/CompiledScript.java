@@ -0,0 +1,86 @@
+package org.billhuang.lox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * @Description A script that has been scanned, parsed, resolved and optimized, ready to be run any
+ * number of times by {@link LoxSession#run(CompiledScript)}.
+ *
+ * The Resolver gave every global an index into {@link #globals}, so each run starts from a copy of
+ * them. The node trees of finished runs are kept for the next ones, so a run only compiles nodes
+ * when every tree is busy with another run. The AST doesn't change after compilation, one script
+ * can be run by several threads at once.
+ *
+ * @Data 2022/3/22 16:30
+ * @Author huangshb
+ **/
+public final class CompiledScript {
+    final List<Stmt> statements;
+    final int slotCount;
+    private final Globals globals;
+    // node trees no run is using right now
+    private final Deque<Nodes> idle = new ArrayDeque<>();
+
+    CompiledScript(List<Stmt> statements, int slotCount, Globals globals) {
+        this.statements = statements;
+        this.slotCount = slotCount;
+        this.globals = globals;
+    }
+
+    /**
+     * The statements compiled to nodes, bound to their own globals. One run at a time uses them, the
+     * type feedback they gathered stays for the next run.
+     */
+    static final class Nodes {
+        final Globals globals;
+        final StmtNode[] statements;
+        final int frameSize;
+        private final List<InlineCache> caches;
+
+        Nodes(Globals globals, StmtNode[] statements, int frameSize, List<InlineCache> caches) {
+            this.globals = globals;
+            this.statements = statements;
+            this.frameSize = frameSize;
+            this.caches = caches;
+        }
+    }
+
+    /**
+     * The globals a run starts with: the natives, and every global of the script still undefined.
+     */
+    Globals newGlobals() {
+        return globals.copy();
+    }
+
+    /**
+     * Nodes for one run, on globals like {@link #newGlobals()}. They are compiled only if no idle ones are left, give them back with {@link #release}.
+     */
+    Nodes acquire() {
+        Nodes nodes;
+        synchronized (idle) {
+            nodes = idle.poll();
+        }
+
+        if (nodes == null) {
+            Globals fresh = newGlobals();
+            NodeCompiler compiler = new NodeCompiler(fresh);
+            StmtNode[] compiled = compiler.compileScript(statements, slotCount);
+            return new Nodes(fresh, compiled, compiler.frameSize(), compiler.caches());
+        }
+
+        // the classes of the last run are gone, nothing of them should stay in the caches
+        nodes.globals.restore(globals);
+        for (InlineCache cache : nodes.caches) {
+            cache.clear();
+        }
+        return nodes;
+    }
+
+    void release(Nodes nodes) {
+        synchronized (idle) {
+            idle.push(nodes);
+        }
+    }
+}
@@ -1,87 +1,100 @@
 package org.billhuang.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 /**
- * @Description
+ * @Description The flat frame of one function call, plus the cells its closure captured.
+ *
+ * Every local of a function, including the ones declared in nested blocks, has a fixed slot in the
+ * frame, so a frame is allocated once per call and blocks don't allocate at all. The Resolver tells
+ * each variable access how to find its value:
+ * <ul>
+ *     <li>{@link #GLOBAL}: the slot is an index into {@link Globals}</li>
+ *     <li>{@link #LOCAL}: the value is in the frame slot</li>
+ *     <li>{@link #CELL}: the frame slot holds the {@link Cell} of a local that a closure captured</li>
+ *     <li>{@link #UPVALUE}: the slot is an index into the closure's captured cells</li>
+ * </ul>
+ *
+ * A plain local that holds a number can keep it unboxed in {@link #numbers}, its slot then holds
+ * {@link #UNBOXED} until something needs the value as an object.
+ *
  * @Data 2022/3/9 15:54
  * @Author huangshb
  **/
 public class EfficientEnvironment {
-    final Map<String, Object> globals;
-    final EfficientEnvironment enclosing;
-    private final List<Object> values;
+    static final int GLOBAL = 0;
+    static final int LOCAL = 1;
+    static final int CELL = 2;
+    static final int UPVALUE = 3;
 
-    EfficientEnvironment() {
-        globals = new HashMap<>();
-        enclosing = null;
-        values = null;
-    }
+    static final Object UNBOXED = new Object();
+
+    private static final Cell[] NO_UPVALUES = new Cell[0];
+
+    final Interpreter interpreter;
+    final Object[] slots;
+    final Cell[] upvalues;
+    // created by the first unboxed write, most frames never need it
+    double[] numbers;
+    // set by a return statement, read by the call that created the frame
+    Object returnValue;
 
-    EfficientEnvironment(EfficientEnvironment environment) {
-        globals = environment.globals;
-        this.enclosing = environment;
-        this.values = new ArrayList<>();
+    EfficientEnvironment(Interpreter interpreter, int slotCount, Cell[] upvalues) {
+        this.interpreter = interpreter;
+        this.slots = new Object[slotCount];
+        this.upvalues = upvalues == null ? NO_UPVALUES : upvalues;
     }
 
-    void define(String name, Object value) {
-        if (values == null){
-            globals.put(name, value);
-        } else {
-            values.add(value);
+    void define(int kind, int slot, Object value) {
+        switch (kind) {
+            case LOCAL:
+                slots[slot] = value;
+                break;
+            case CELL:
+                ((Cell) slots[slot]).value = value;
+                break;
+            case UPVALUE:
+                upvalues[slot].value = value;
+                break;
+            default:
+                interpreter.globals.values[slot] = value;
         }
     }
 
-    Object getAt(Integer distance, Integer slot, Token name) {
-        if (distance == null) {
-            if (globals.containsKey(name.lexeme)) {
-                return globals.get(name.lexeme);
-            } else {
-                throw new RuntimeError(name, String.format("Undefined variable '%s'.", name.lexeme));
-            }
-        } else {
-            return ancestor(distance).values.get(slot);
+    void setNumber(int slot, double value) {
+        if (numbers == null) {
+            numbers = new double[slots.length];
         }
+        numbers[slot] = value;
+        slots[slot] = UNBOXED;
     }
 
-    Object getAt(Integer distance, Integer slot, String tokenName) {
-        if (distance == null) {
-            if (globals.containsKey(tokenName)) {
-                return globals.get(tokenName);
-            } else {
-                throw new RuntimeError(tokenName, String.format("Undefined variable '%s'.", tokenName));
-            }
-        } else {
-            return ancestor(distance).values.get(slot);
+    /**
+     * Boxes the slots of a scope that closures capture, a fresh cell every time the scope is entered.
+     */
+    void box(int[] cells) {
+        if (cells == null) {
+            return;
         }
-    }
 
-    void assign(Token name, Object value) {
-        assignAt(null, 0, name, value);
+        for (int slot : cells) {
+            Object value = slots[slot];
+            slots[slot] = new Cell(value == UNBOXED ? numbers[slot] : value);
+        }
     }
 
-    void assignAt(Integer distance, Integer slot, Token name, Object value) {
-        if (distance == null) {
-            if (globals.containsKey(name.lexeme)) {
-                globals.put(name.lexeme, value);
-            } else {
-                throw new RuntimeError(name, String.format("Undefined variable '%s'.", name));
-            }
-        } else {
-            ancestor(distance).values.add(slot, value);
+    /**
+     * Collects the cells a function declared in this frame closes over.
+     */
+    Cell[] capture(Expr.Function function) {
+        if (function.captureSlots == null) {
+            return NO_UPVALUES;
         }
 
-    }
-
-    private EfficientEnvironment ancestor(int distance) {
-        EfficientEnvironment env = this;
-        for (int i = 0; i < distance; i++) {
-            env = env.enclosing;
+        Cell[] cells = new Cell[function.captureSlots.length];
+        for (int i = 0; i < cells.length; i++) {
+            int slot = function.captureSlots[i];
+            cells[i] = function.captureLocals[i] ? (Cell) slots[slot] : upvalues[slot];
         }
 
-        return env;
+        return cells;
     }
 }
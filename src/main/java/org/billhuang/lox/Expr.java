@@ -33,6 +33,8 @@ abstract class Expr {
 
         final Token name;
         final Expr value;
+        int kind = EfficientEnvironment.GLOBAL;
+        int slot = 0;
     }
     static class Comma extends Expr {
         Comma(Expr left, Expr right) {
@@ -137,6 +139,8 @@ abstract class Expr {
         }
 
         final Token keyword;
+        int kind = EfficientEnvironment.GLOBAL;
+        int slot = 0;
     }
     static class Super extends Expr {
         Super(Token keyword, Token method) {
@@ -151,6 +155,9 @@ abstract class Expr {
 
         final Token keyword;
         final Token method;
+        int kind = EfficientEnvironment.GLOBAL;
+        int slot = 0;
+        Expr.This receiver = null;
     }
     static class Function extends Expr {
         Function(List<Token> params, List<Stmt> body) {
@@ -165,6 +172,10 @@ abstract class Expr {
 
         final List<Token> params;
         final List<Stmt> body;
+        int slotCount = 0;
+        int[] cells = null;
+        boolean[] captureLocals = null;
+        int[] captureSlots = null;
     }
     static class Grouping extends Expr {
         Grouping(Expr expression) {
@@ -231,6 +242,8 @@ abstract class Expr {
         }
 
         final Token name;
+        int kind = EfficientEnvironment.GLOBAL;
+        int slot = 0;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
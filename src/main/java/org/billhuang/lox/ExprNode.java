@@ -0,0 +1,926 @@
+package org.billhuang.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @Description Executable form of an expression, produced from the resolved AST by {@link NodeCompiler}.
+ *
+ * Every node already knows what it has to do, e.g. which frame slot to read or which operator to
+ * apply, so running it is one virtual call to {@link #execute} per node instead of a visitor
+ * dispatch followed by a switch on the operator.
+ *
+ * @Data 2022/3/21 09:30
+ * @Author huangshb
+ **/
+abstract class ExprNode {
+    abstract Object execute(EfficientEnvironment frame);
+
+    /**
+     * Evaluates a node whose result is expected to be a number without boxing it. Nodes that can
+     * produce a primitive override this; anything else throws with the value it got instead.
+     */
+    double executeNumber(EfficientEnvironment frame) throws UnexpectedValue {
+        Object value = execute(frame);
+        if (value instanceof Double) {
+            return (double) value;
+        }
+        throw new UnexpectedValue(value);
+    }
+
+    /**
+     * Evaluates a node only for its side effects, so nodes that store a number don't have to box
+     * it just to return it.
+     */
+    void executeVoid(EfficientEnvironment frame) {
+        execute(frame);
+    }
+
+    /**
+     * Thrown when a node was asked for a number but produced something else, the caller then moves
+     * off its specialized path. Like {@link RuntimeError} it has no stack trace.
+     *
+     * Each throw carries its own value, so a shared instance would need a mutable field. It isn't
+     * worth it: every caller that catches one either gives up its specialized path for good or
+     * reports a runtime error, so a node throws at most once per transition, never in a loop.
+     */
+    static final class UnexpectedValue extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final Object value;
+
+        UnexpectedValue(Object value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
+
+    static final class Constant extends ExprNode {
+        final Object value;
+
+        Constant(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            return value;
+        }
+    }
+
+    static final class LocalRead extends ExprNode {
+        final int slot;
+
+        LocalRead(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            Object value = frame.slots[slot];
+            if (value == EfficientEnvironment.UNBOXED) {
+                // keep the box, the next read as an object doesn't need to make another one
+                value = frame.numbers[slot];
+                frame.slots[slot] = value;
+            }
+            return value;
+        }
+
+        @Override
+        double executeNumber(EfficientEnvironment frame) throws UnexpectedValue {
+            Object value = frame.slots[slot];
+            if (value == EfficientEnvironment.UNBOXED) {
+                return frame.numbers[slot];
+            } else if (value instanceof Double) {
+                return (double) value;
+            }
+            throw new UnexpectedValue(value);
+        }
+    }
+
+    static final class CellRead extends ExprNode {
+        final int slot;
+
+        CellRead(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            return ((Cell) frame.slots[slot]).value;
+        }
+    }
+
+    static final class UpvalueRead extends ExprNode {
+        final int index;
+
+        UpvalueRead(int index) {
+            this.index = index;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            return frame.upvalues[index].value;
+        }
+    }
+
+    static final class GlobalRead extends ExprNode {
+        final Globals globals;
+        final Token name;
+        final int index;
+
+        GlobalRead(Globals globals, Token name, int index) {
+            this.globals = globals;
+            this.name = name;
+            this.index = index;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            Object value = globals.values[index];
+            if (value == Globals.UNDEFINED) {
+                throw new RuntimeError(name, String.format("Undefined variable '%s'.", name.lexeme));
+            }
+            return value;
+        }
+    }
+
+    /**
+     * As a statement the write assumes it stores numbers and keeps them unboxed, the first other
+     * value turns that off for this node.
+     */
+    static final class LocalWrite extends ExprNode {
+        final int slot;
+        final ExprNode value;
+        private boolean numeric = true;
+
+        LocalWrite(int slot, ExprNode value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            Object result = value.execute(frame);
+            frame.slots[slot] = result;
+            return result;
+        }
+
+        @Override
+        void executeVoid(EfficientEnvironment frame) {
+            if (numeric) {
+                try {
+                    frame.setNumber(slot, value.executeNumber(frame));
+                    return;
+                } catch (UnexpectedValue e) {
+                    numeric = false;
+                    frame.slots[slot] = e.value;
+                    return;
+                }
+            }
+            frame.slots[slot] = value.execute(frame);
+        }
+    }
+
+    static final class CellWrite extends ExprNode {
+        final int slot;
+        final ExprNode value;
+
+        CellWrite(int slot, ExprNode value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            Object result = value.execute(frame);
+            ((Cell) frame.slots[slot]).value = result;
+            return result;
+        }
+    }
+
+    static final class UpvalueWrite extends ExprNode {
+        final int index;
+        final ExprNode value;
+
+        UpvalueWrite(int index, ExprNode value) {
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            Object result = value.execute(frame);
+            frame.upvalues[index].value = result;
+            return result;
+        }
+    }
+
+    static final class GlobalWrite extends ExprNode {
+        final Globals globals;
+        final Token name;
+        final int index;
+        final ExprNode value;
+
+        GlobalWrite(Globals globals, Token name, int index, ExprNode value) {
+            this.globals = globals;
+            this.name = name;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            Object result = value.execute(frame);
+            if (globals.values[index] == Globals.UNDEFINED) {
+                throw new RuntimeError(name, String.format("Undefined variable '%s'.", name.lexeme));
+            }
+            globals.values[index] = result;
+            return result;
+        }
+    }
+
+    /**
+     * Declares a global, unlike an assignment it doesn't need the global to exist already.
+     */
+    static final class GlobalDefine extends ExprNode {
+        final Globals globals;
+        final int index;
+        final ExprNode value;
+
+        GlobalDefine(Globals globals, int index, ExprNode value) {
+            this.globals = globals;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            Object result = value.execute(frame);
+            globals.values[index] = result;
+            return result;
+        }
+    }
+
+    static final class Comma extends ExprNode {
+        final ExprNode left;
+        final ExprNode right;
+
+        Comma(ExprNode left, ExprNode right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            left.executeVoid(frame);
+            return right.execute(frame);
+        }
+    }
+
+    static final class Conditional extends ExprNode {
+        final ExprNode condition;
+        final ExprNode thenBranch;
+        final ExprNode elseBranch;
+
+        Conditional(ExprNode condition, ExprNode thenBranch, ExprNode elseBranch) {
+            this.condition = condition;
+            this.thenBranch = thenBranch;
+            this.elseBranch = elseBranch;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            return Interpreter.isTruthy(condition.execute(frame))
+                    ? thenBranch.execute(frame)
+                    : elseBranch.execute(frame);
+        }
+    }
+
+    static final class And extends ExprNode {
+        final ExprNode left;
+        final ExprNode right;
+
+        And(ExprNode left, ExprNode right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            Object value = left.execute(frame);
+            return Interpreter.isTruthy(value) ? right.execute(frame) : value;
+        }
+    }
+
+    static final class Or extends ExprNode {
+        final ExprNode left;
+        final ExprNode right;
+
+        Or(ExprNode left, ExprNode right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            Object value = left.execute(frame);
+            return Interpreter.isTruthy(value) ? value : right.execute(frame);
+        }
+    }
+
+    static final class Not extends ExprNode {
+        final ExprNode operand;
+
+        Not(ExprNode operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            return !Interpreter.isTruthy(operand.execute(frame));
+        }
+    }
+
+    static final class Negate extends ExprNode {
+        final Token operator;
+        final ExprNode operand;
+
+        Negate(Token operator, ExprNode operand) {
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            return executeNumber(frame);
+        }
+
+        @Override
+        double executeNumber(EfficientEnvironment frame) {
+            try {
+                return -operand.executeNumber(frame);
+            } catch (UnexpectedValue e) {
+                throw new RuntimeError(operator, "Operand must be a number.");
+            }
+        }
+    }
+
+    abstract static class Binary extends ExprNode {
+        final Token operator;
+        final ExprNode left;
+        final ExprNode right;
+
+        Binary(Token operator, ExprNode left, ExprNode right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        /**
+         * Reads the left operand of an operator that only takes numbers. When it isn't a number the
+         * right operand is still evaluated before the error is reported.
+         */
+        final double leftNumber(EfficientEnvironment frame) {
+            try {
+                return left.executeNumber(frame);
+            } catch (UnexpectedValue e) {
+                right.execute(frame);
+                throw new RuntimeError(operator, "Operand must be a number.");
+            }
+        }
+
+        final double rightNumber(EfficientEnvironment frame) {
+            try {
+                return right.executeNumber(frame);
+            } catch (UnexpectedValue e) {
+                throw new RuntimeError(operator, "Operand must be a number.");
+            }
+        }
+    }
+
+    /**
+     * '+' specializes itself on the operands it sees first: two numbers are added without boxing the
+     * intermediate values, two strings are concatenated directly. Any other operand moves the node
+     * to the generic path for good.
+     */
+    static final class Add extends Binary {
+        private static final int UNINITIALIZED = 0;
+        private static final int NUMBERS = 1;
+        private static final int STRINGS = 2;
+        private static final int GENERIC = 3;
+
+        private int state = UNINITIALIZED;
+
+        Add(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            if (state == NUMBERS) {
+                double a;
+                try {
+                    a = left.executeNumber(frame);
+                } catch (UnexpectedValue e) {
+                    return generalize(e.value, right.execute(frame));
+                }
+                try {
+                    return a + right.executeNumber(frame);
+                } catch (UnexpectedValue e) {
+                    return generalize(a, e.value);
+                }
+            }
+
+            Object a = left.execute(frame);
+            Object b = right.execute(frame);
+            if (state == STRINGS) {
+                if (a instanceof String && b instanceof String) {
+                    return (String) a + b;
+                }
+                return generalize(a, b);
+            } else if (state == UNINITIALIZED) {
+                if (a instanceof Double && b instanceof Double) {
+                    state = NUMBERS;
+                } else if (a instanceof String && b instanceof String) {
+                    state = STRINGS;
+                } else {
+                    state = GENERIC;
+                }
+            }
+            return add(a, b);
+        }
+
+        @Override
+        double executeNumber(EfficientEnvironment frame) throws UnexpectedValue {
+            if (state != NUMBERS) {
+                return super.executeNumber(frame);
+            }
+
+            double a;
+            try {
+                a = left.executeNumber(frame);
+            } catch (UnexpectedValue e) {
+                throw new UnexpectedValue(generalize(e.value, right.execute(frame)));
+            }
+            try {
+                return a + right.executeNumber(frame);
+            } catch (UnexpectedValue e) {
+                throw new UnexpectedValue(generalize(a, e.value));
+            }
+        }
+
+        private Object generalize(Object a, Object b) {
+            state = GENERIC;
+            return add(a, b);
+        }
+
+        private Object add(Object a, Object b) {
+            if (a instanceof Double && b instanceof Double) {
+                return (double) a + (double) b;
+            } else if (Interpreter.isStringOrNum(a) && Interpreter.isStringOrNum(b)) {
+                return a.toString() + b.toString();
+            }
+            throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+        }
+    }
+
+    static final class Subtract extends Binary {
+        Subtract(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            return executeNumber(frame);
+        }
+
+        @Override
+        double executeNumber(EfficientEnvironment frame) {
+            return leftNumber(frame) - rightNumber(frame);
+        }
+    }
+
+    static final class Multiply extends Binary {
+        Multiply(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            return executeNumber(frame);
+        }
+
+        @Override
+        double executeNumber(EfficientEnvironment frame) {
+            return leftNumber(frame) * rightNumber(frame);
+        }
+    }
+
+    static final class Divide extends Binary {
+        Divide(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            return executeNumber(frame);
+        }
+
+        @Override
+        double executeNumber(EfficientEnvironment frame) {
+            double a = leftNumber(frame);
+            double b = rightNumber(frame);
+            if (Double.compare(b, 0.0) == 0) {
+                throw new RuntimeError(operator, "The divisor cannot be zero.");
+            }
+            return a / b;
+        }
+    }
+
+    static final class Greater extends Binary {
+        Greater(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            return leftNumber(frame) > rightNumber(frame);
+        }
+    }
+
+    static final class GreaterEqual extends Binary {
+        GreaterEqual(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            return leftNumber(frame) >= rightNumber(frame);
+        }
+    }
+
+    static final class Less extends Binary {
+        Less(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            return leftNumber(frame) < rightNumber(frame);
+        }
+    }
+
+    static final class LessEqual extends Binary {
+        LessEqual(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            return leftNumber(frame) <= rightNumber(frame);
+        }
+    }
+
+    /**
+     * '==' and '!=' compare two numbers without boxing them until an operand of another type shows
+     * up, from then on they compare with {@link Interpreter#isEqual}.
+     */
+    abstract static class Equality extends Binary {
+        private boolean generic;
+
+        Equality(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        final boolean test(EfficientEnvironment frame) {
+            if (generic) {
+                return Interpreter.isEqual(left.execute(frame), right.execute(frame));
+            }
+
+            double a;
+            try {
+                a = left.executeNumber(frame);
+            } catch (UnexpectedValue e) {
+                generic = true;
+                return Interpreter.isEqual(e.value, right.execute(frame));
+            }
+            try {
+                // same as Double.equals, so NaN == NaN and 0 != -0 like on the generic path
+                return Double.doubleToLongBits(a) == Double.doubleToLongBits(right.executeNumber(frame));
+            } catch (UnexpectedValue e) {
+                generic = true;
+                return false;
+            }
+        }
+    }
+
+    static final class Equal extends Equality {
+        Equal(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            return test(frame);
+        }
+    }
+
+    static final class NotEqual extends Equality {
+        NotEqual(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            return !test(frame);
+        }
+    }
+
+    /**
+     * Base of the call nodes, the number of arguments is fixed when the node is built.
+     */
+    abstract static class AbstractCall extends ExprNode {
+        final Token paren;
+        final ExprNode[] arguments;
+        // set on the value of a return, a call of a Lox function is then left to the caller's caller
+        boolean tail;
+
+        AbstractCall(Token paren, ExprNode[] arguments) {
+            this.paren = paren;
+            this.arguments = arguments;
+        }
+
+        final Object call(EfficientEnvironment frame, Object function) {
+            if (function instanceof LoxFunction) {
+                return invoke(frame, (LoxFunction) function, ((LoxFunction) function).receiver);
+            } else if (!(function instanceof LoxCallable)) {
+                throw new RuntimeError(paren, "Can only call functions and classes.");
+            }
+
+            LoxCallable callable = (LoxCallable) function;
+            Interpreter interpreter = frame.interpreter;
+            switch (arguments.length) {
+                case 0:
+                    checkArity(callable.arity());
+                    return callable.call0(interpreter);
+                case 1: {
+                    Object a = arguments[0].execute(frame);
+                    checkArity(callable.arity());
+                    return callable.call1(interpreter, a);
+                }
+                case 2: {
+                    Object a = arguments[0].execute(frame);
+                    Object b = arguments[1].execute(frame);
+                    checkArity(callable.arity());
+                    return callable.call2(interpreter, a, b);
+                }
+                case 3: {
+                    Object a = arguments[0].execute(frame);
+                    Object b = arguments[1].execute(frame);
+                    Object c = arguments[2].execute(frame);
+                    checkArity(callable.arity());
+                    return callable.call3(interpreter, a, b, c);
+                }
+                default:
+                    return callable.call(interpreter, evaluateArguments(frame, callable.arity()));
+            }
+        }
+
+        /**
+         * Evaluates the arguments straight into the callee's frame.
+         */
+        final Object invoke(EfficientEnvironment frame, LoxFunction function, LoxInstance receiver) {
+            if (arguments.length != function.arity()) {
+                // still evaluated first, like in any other call
+                evaluateArguments(frame, function.arity());
+            }
+
+            EfficientEnvironment callee = function.frame(frame.interpreter, receiver);
+            int slot = function.firstArgument();
+            for (ExprNode argument : arguments) {
+                callee.slots[slot++] = argument.execute(frame);
+            }
+            return tail ? function.tailCall(callee, receiver) : function.execute(callee, receiver);
+        }
+
+        private void checkArity(int arity) {
+            if (arguments.length != arity) {
+                throw new RuntimeError(paren, String.format("Expected %s arguments but got %s.",
+                        arity, arguments.length));
+            }
+        }
+
+        final List<Object> evaluateArguments(EfficientEnvironment frame, int arity) {
+            List<Object> values = new ArrayList<>(arguments.length);
+            for (ExprNode argument : arguments) {
+                values.add(argument.execute(frame));
+            }
+
+            checkArity(arity);
+            return values;
+        }
+    }
+
+    static final class Call extends AbstractCall {
+        final ExprNode callee;
+
+        Call(Token paren, ExprNode callee, ExprNode[] arguments) {
+            super(paren, arguments);
+            this.callee = callee;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            return call(frame, callee.execute(frame));
+        }
+    }
+
+    /**
+     * A call of a small global function whose body was compiled into the caller, the arguments go
+     * to the caller's frame from {@link #base} on instead of a new frame. The global is still read
+     * on every call, if it no longer holds the inlined function the call is made normally.
+     */
+    static final class InlinedCall extends AbstractCall {
+        final ExprNode callee;
+        final Expr.Function target;
+        final int base;
+        final ExprNode body;
+
+        InlinedCall(Token paren, ExprNode callee, ExprNode[] arguments, Expr.Function target, int base,
+                    ExprNode body) {
+            super(paren, arguments);
+            this.callee = callee;
+            this.target = target;
+            this.base = base;
+            this.body = body;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            Object function = callee.execute(frame);
+            if (!(function instanceof LoxFunction) || ((LoxFunction) function).code.declaration != target) {
+                return call(frame, function);
+            }
+
+            for (int i = 0; i < arguments.length; i++) {
+                frame.slots[base + i] = arguments[i].execute(frame);
+            }
+            return body.execute(frame);
+        }
+    }
+
+    /**
+     * obj.method(): the method is called with the receiver directly, a bound method is only made
+     * when a method is used as a value.
+     */
+    static final class Invoke extends AbstractCall {
+        final ExprNode object;
+        final Token name;
+        final InlineCache cache;
+
+        Invoke(Token paren, ExprNode object, Token name, InlineCache cache, ExprNode[] arguments) {
+            super(paren, arguments);
+            this.object = object;
+            this.name = name;
+            this.cache = cache;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            Object receiver = object.execute(frame);
+            if (!(receiver instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instances have properties.");
+            }
+
+            LoxInstance instance = (LoxInstance) receiver;
+            int entry = cache.lookup(instance, name);
+            int offset = cache.offset(entry);
+            if (offset < 0) {
+                return invoke(frame, cache.method(entry), instance);
+            }
+
+            return call(frame, instance.fields[offset]);
+        }
+    }
+
+    static final class SuperInvoke extends AbstractCall {
+        final Super method;
+
+        SuperInvoke(Token paren, Super method, ExprNode[] arguments) {
+            super(paren, arguments);
+            this.method = method;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            LoxInstance receiver = (LoxInstance) method.receiver.execute(frame);
+            LoxFunction target = method.find(frame);
+            return invoke(frame, target, receiver);
+        }
+    }
+
+    static final class Get extends ExprNode {
+        final ExprNode object;
+        final Token name;
+        final InlineCache cache;
+
+        Get(ExprNode object, Token name, InlineCache cache) {
+            this.object = object;
+            this.name = name;
+            this.cache = cache;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            Object value = object.execute(frame);
+            if (value instanceof LoxInstance) {
+                return cache.get((LoxInstance) value, name);
+            }
+
+            throw new RuntimeError(name, "Only instances have properties.");
+        }
+    }
+
+    static final class Set extends ExprNode {
+        final ExprNode object;
+        final Token name;
+        final ExprNode value;
+        final InlineCache cache;
+
+        Set(ExprNode object, Token name, ExprNode value, InlineCache cache) {
+            this.object = object;
+            this.name = name;
+            this.value = value;
+            this.cache = cache;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            Object target = object.execute(frame);
+            if (!(target instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instances have fields.");
+            }
+
+            Object result = value.execute(frame);
+            cache.set((LoxInstance) target, name, result);
+            return result;
+        }
+    }
+
+    /**
+     * super.method used as a value, which binds it to the current receiver.
+     */
+    static final class Super extends ExprNode {
+        final ExprNode superclass;
+        final ExprNode receiver;
+        final Token method;
+
+        Super(ExprNode superclass, ExprNode receiver, Token method) {
+            this.superclass = superclass;
+            this.receiver = receiver;
+            this.method = method;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            LoxInstance instance = (LoxInstance) receiver.execute(frame);
+            return find(frame).bind(instance);
+        }
+
+        LoxFunction find(EfficientEnvironment frame) {
+            LoxFunction found = ((LoxClass) superclass.execute(frame)).findMethod(method.lexeme);
+            if (found == null) {
+                throw new RuntimeError(method, String.format("Undefined property '%s'.", method.lexeme));
+            }
+            return found;
+        }
+    }
+
+    /**
+     * Creates a function object, capturing the cells its body uses from the current frame.
+     */
+    static final class Closure extends ExprNode {
+        final String name;
+        final Expr.Function declaration;
+        final StmtNode body;
+        // the Resolver's slots plus the ones calls inlined into the body need
+        final int frameSize;
+
+        Closure(String name, Expr.Function declaration, StmtNode body, int frameSize) {
+            this.name = name;
+            this.declaration = declaration;
+            this.body = body;
+            this.frameSize = frameSize;
+        }
+
+        @Override
+        Object execute(EfficientEnvironment frame) {
+            return create(frame, false, false);
+        }
+
+        LoxFunction create(EfficientEnvironment frame, boolean isInitializer, boolean isMethod) {
+            return new LoxFunction(this, frame.capture(declaration), isInitializer, isMethod, null);
+        }
+    }
+}
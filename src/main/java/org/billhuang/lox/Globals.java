@@ -0,0 +1,87 @@
+package org.billhuang.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @Description Global variables addressed by a stable integer index.
+ *
+ * Names are mapped to an index once, at compile time, so reads and writes at runtime are plain
+ * array accesses. A slot that was never defined holds {@link #UNDEFINED}, which lets the caller
+ * report undefined variables lazily, when the access actually runs.
+ *
+ * @Data 2022/3/15 10:12
+ * @Author huangshb
+ **/
+class Globals {
+    static final Object UNDEFINED = new Object();
+
+    private final Map<String, Integer> indexes = new HashMap<>();
+    String[] names = new String[64];
+    Object[] values = new Object[64];
+    private int count = 0;
+
+    Globals() {
+        Arrays.fill(values, UNDEFINED);
+    }
+
+    /**
+     * Globals holding the natives, where every program starts.
+     */
+    static Globals withNatives() {
+        Globals globals = new Globals();
+        globals.define("clock", new Clock());
+        return globals;
+    }
+
+    /**
+     * A copy with the same indexes, so code resolved against these globals can run on the copy.
+     */
+    Globals copy() {
+        Globals copy = new Globals();
+        copy.indexes.putAll(indexes);
+        copy.names = names.clone();
+        copy.values = values.clone();
+        copy.count = count;
+        return copy;
+    }
+
+    /**
+     * Takes the values back from the globals this is a copy of, see {@link #copy()}.
+     */
+    void restore(Globals original) {
+        values = original.values.clone();
+    }
+
+    /**
+     * How many globals have an index, defined or not.
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Returns the index of a global, reserving an undefined slot the first time a name is seen.
+     */
+    int indexOf(String name) {
+        Integer index = indexes.get(name);
+        if (index != null) {
+            return index;
+        }
+
+        if (count == values.length) {
+            names = Arrays.copyOf(names, count * 2);
+            values = Arrays.copyOf(values, count * 2);
+            Arrays.fill(values, count, values.length, UNDEFINED);
+        }
+
+        names[count] = name;
+        indexes.put(name, count);
+        return count++;
+    }
+
+    void define(String name, Object value) {
+        values[indexOf(name)] = value;
+    }
+}
@@ -0,0 +1,142 @@
+package org.billhuang.lox;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * @Description Per call site cache of property lookups, keyed on the receiver's {@link Shape}.
+ *
+ * A shape belongs to exactly one class and fixes where every field lives, so a site that has seen
+ * a shape before can skip both the field lookup and the walk up the superclass chain. The first
+ * shape makes the site monomorphic, up to {@link #MAX_ENTRIES} shapes are kept side by side and
+ * past that the site is megamorphic and every lookup takes the slow path.
+ *
+ * @Data 2022/3/18 09:40
+ * @Author huangshb
+ **/
+final class InlineCache {
+    static final int MAX_ENTRIES = 4;
+
+    static final Counter GET = new Counter("get");
+    static final Counter SET = new Counter("set");
+    static final Counter INVOKE = new Counter("invoke");
+    // only set by --ic-stats, the counters are shared by every session
+    static boolean counting = false;
+
+    static final class Counter {
+        final String name;
+        long hits;
+        long misses;
+
+        Counter(String name) {
+            this.name = name;
+        }
+    }
+
+    private final Counter counter;
+    private final Shape[] shapes = new Shape[MAX_ENTRIES + 1];
+    private final int[] offsets = new int[MAX_ENTRIES + 1];
+    // the method for get and invoke sites, the shape after the store for set sites
+    private final Object[] targets = new Object[MAX_ENTRIES + 1];
+    private int size = 0;
+
+    InlineCache(Counter counter) {
+        this.counter = counter;
+    }
+
+    /**
+     * Finds the entry for the receiver's shape, filling one in on a miss. The returned entry is a
+     * field if {@link #offset} is not negative and a method otherwise.
+     */
+    int lookup(LoxInstance instance, Token name) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) {
+                if (counting) {
+                    counter.hits++;
+                }
+                return i;
+            }
+        }
+
+        if (counting) {
+            counter.misses++;
+        }
+        int offset = shape.offsetOf(name.lexeme);
+        LoxFunction method = null;
+        if (offset < 0) {
+            method = instance.loxClass.findMethod(name.lexeme);
+            if (method == null) {
+                throw new RuntimeError(name, String.format("Undefined property '%s'.", name.lexeme));
+            }
+        }
+
+        return fill(shape, offset, method);
+    }
+
+    int offset(int entry) {
+        return offsets[entry];
+    }
+
+    LoxFunction method(int entry) {
+        return (LoxFunction) targets[entry];
+    }
+
+    Object get(LoxInstance instance, Token name) {
+        int entry = lookup(instance, name);
+        int offset = offsets[entry];
+        return offset >= 0 ? instance.fields[offset] : method(entry).bind(instance);
+    }
+
+    void set(LoxInstance instance, Token name, Object value) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) {
+                if (counting) {
+                    counter.hits++;
+                }
+                instance.putField((Shape) targets[i], offsets[i], value);
+                return;
+            }
+        }
+
+        if (counting) {
+            counter.misses++;
+        }
+        Shape next = shape;
+        int offset = shape.offsetOf(name.lexeme);
+        if (offset < 0) {
+            next = shape.withField(name.lexeme);
+            offset = next.size - 1;
+        }
+
+        int entry = fill(shape, offset, next);
+        instance.putField((Shape) targets[entry], offsets[entry], value);
+    }
+
+    /**
+     * Forgets every shape, for a site that runs again on the classes of another run.
+     */
+    void clear() {
+        Arrays.fill(shapes, null);
+        Arrays.fill(targets, null);
+        size = 0;
+    }
+
+    private int fill(Shape shape, int offset, Object target) {
+        // a megamorphic site keeps reusing the spare entry past the cached ones
+        int entry = size < MAX_ENTRIES ? size++ : MAX_ENTRIES;
+        shapes[entry] = shape;
+        offsets[entry] = offset;
+        targets[entry] = target;
+        return entry;
+    }
+
+    static void dump(PrintStream out) {
+        for (Counter counter : new Counter[]{GET, SET, INVOKE}) {
+            long total = counter.hits + counter.misses;
+            out.println(String.format("inline cache %s: %d hits, %d misses, %.2f%% hit rate", counter.name,
+                    counter.hits, counter.misses, total == 0 ? 0.0 : counter.hits * 100.0 / total));
+        }
+    }
+}
@@ -3,10 +3,11 @@ package org.billhuang.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * @Description
@@ -15,33 +16,68 @@ import java.util.List;
  **/
 public class Lox {
     public static void main(String[] args) throws IOException {
+        boolean reportEliminated = false;
+        while (args.length > 0 && args[0].startsWith("--")) {
+            if ("--ic-stats".equals(args[0])) {
+                InlineCache.counting = true;
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> InlineCache.dump(System.err)));
+            } else if ("--dce-report".equals(args[0])) {
+                reportEliminated = true;
+            } else if ("--snapshot".equals(args[0])) {
+                snapshot = true;
+            } else {
+                break;
+            }
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+
         if (args.length > 1) {
-            System.out.println("Usage: lox [script]");
+            System.out.println("Usage: lox [--ic-stats] [--dce-report] [--snapshot] [script]");
             System.exit(64);
-        } else if (args.length == 1) {
+        }
+
+        session = new LoxEngine(reportEliminated).newSession();
+        if (args.length == 1) {
             runFile(args[0]);
         } else {
             runPrompt();
         }
     }
 
-    private static final Interpreter interpreter = new Interpreter();
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
+    // the session of the command line, and of code that reports errors outside of any session
+    private static LoxSession session = new LoxEngine().newSession();
+    // load scripts from, and save them to, .loxc snapshots next to them
+    private static boolean snapshot = false;
 
     static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        if (snapshot) {
+            CompiledScript script = session.compile(Paths.get(path));
+            if (script != null) {
+                session.run(script);
+            }
+        } else {
+            try (Reader reader = new InputStreamReader(Files.newInputStream(Paths.get(path)), Charset.defaultCharset())) {
+                session.runProgram(reader);
+            }
+        }
 
-        if (hadError) {
+        if (session.hadError()) {
             System.exit(65);
         }
-        if (hadRuntimeError) {
+        if (session.hadRuntimeError()) {
             System.exit(70);
         }
     }
 
+    /**
+     * Sends what scripts print to the given output from now on.
+     */
+    public static void setOutput(LoxOutput output) {
+        session.setOutput(output);
+    }
+
     private static void runPrompt() throws IOException {
+        setOutput(LoxOutput.console(LoxOutput.Flush.LINE));
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
 
@@ -57,52 +93,11 @@ public class Lox {
     }
 
     static void runRepl(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
-        Object syntax = parser.parseRepl();
-
-         if (hadError) {
-            return;
-         }
-
-        if (syntax instanceof List) {
-            Resolver resolver = new Resolver(interpreter);
-            List<Stmt> statements = (List<Stmt>) syntax;
-            resolver.resolve(statements);
-
-            if (hadError) {
-                return;
-            }
-
-            interpreter.interpret(statements);
-        } else if (syntax instanceof Expr) {
-            String result = interpreter.interpret((Expr) syntax);
-            System.out.println(result);
-        }
+        session.runRepl(source);
     }
 
     static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
-        //Expr expression = parser.parse();
-        List<Stmt> statements = parser.parse();
-
-        // Stop if there was a syntax error.
-        if (hadError) {
-            return;
-        }
-
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolve(statements);
-
-        if (hadError) {
-            return;
-        }
-
-        // System.out.println(new AstPrinter().print(expression));
-        interpreter.interpret(statements);
+        session.run(source);
     }
 
     static void error(int line, String message) {
@@ -118,12 +113,15 @@ public class Lox {
     }
 
     private static void report(int line, String where, String message) {
-        System.err.println(String.format("[line %s ], Error%s: %s", line, where, message));
-        hadError =true;
+        reporter().error(line, where, message);
     }
 
     static void runtimeError(RuntimeError error) {
-        System.err.println(String.format("%s \n[line %s ]", error.getMessage(), error.token.line));
-        hadRuntimeError = true;
+        reporter().runtimeError(error);
+    }
+
+    private static LoxSession reporter() {
+        LoxSession current = LoxSession.current();
+        return current == null ? session : current;
     }
 }
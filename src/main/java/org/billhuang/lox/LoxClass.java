@@ -1,5 +1,6 @@
 package org.billhuang.lox;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -10,14 +11,24 @@ import java.util.Map;
  **/
 public class LoxClass extends LoxInstance implements LoxCallable{
     private final String name;
-    private final LoxClass superclass;
+    // the class's own methods over everything it inherits, so a lookup never walks the superclasses
     private final Map<String, LoxFunction> methods;
+    private final LoxFunction initializer;
+    private final int arity;
+    // every instance starts out with this shape, so the layouts of one class are shared
+    final Shape instanceShape = new Shape();
 
     LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
         super();
         this.name = name;
-        this.superclass = superclass;
-        this.methods = methods;
+        if (superclass == null) {
+            this.methods = methods;
+        } else {
+            this.methods = new HashMap<>(superclass.methods);
+            this.methods.putAll(methods);
+        }
+        this.initializer = this.methods.get("init");
+        this.arity = initializer == null ? 0 : initializer.arity();
         this.loxClass = this;
     }
 
@@ -28,30 +39,60 @@ public class LoxClass extends LoxInstance implements LoxCallable{
 
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
-        return initializer == null ? 0 : initializer.arity();
+        return arity;
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.invoke(interpreter, instance, arguments);
         }
 
         return instance;
     }
 
-    LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
+    @Override
+    public Object call0(Interpreter interpreter) {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) {
+            initializer.invoke0(interpreter, instance);
         }
 
-        if (superclass != null) {
-            return superclass.findMethod(name);
+        return instance;
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) {
+            initializer.invoke1(interpreter, instance, a);
         }
 
-        return null;
+        return instance;
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) {
+            initializer.invoke2(interpreter, instance, a, b);
+        }
+
+        return instance;
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) {
+            initializer.invoke3(interpreter, instance, a, b, c);
+        }
+
+        return instance;
+    }
+
+    LoxFunction findMethod(String name) {
+        return methods.get(name);
     }
 }
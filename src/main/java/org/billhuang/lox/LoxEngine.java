@@ -0,0 +1,50 @@
+package org.billhuang.lox;
+
+/**
+ * @Description Entry point for hosts that embed Lox.
+ *
+ * An engine only holds settings, so one engine can hand out sessions to any number of threads.
+ * Scripts that must not see each other's globals get a session each.
+ *
+ * @Data 2022/3/22 14:40
+ * @Author huangshb
+ **/
+public final class LoxEngine {
+    public static final int DEFAULT_CACHE_SIZE = 256;
+
+    final boolean reportEliminated;
+    // compiled scripts, shared by the sessions of this engine
+    private final ScriptCache cache;
+
+    public LoxEngine() {
+        this(false);
+    }
+
+    public LoxEngine(boolean reportEliminated) {
+        this(reportEliminated, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param reportEliminated print what dead code elimination removed to the error output
+     * @param cacheSize how many compiled scripts {@link LoxSession#compile} keeps
+     */
+    public LoxEngine(boolean reportEliminated, int cacheSize) {
+        this.reportEliminated = reportEliminated;
+        this.cache = new ScriptCache(cacheSize);
+    }
+
+    public ScriptCache cache() {
+        return cache;
+    }
+
+    /**
+     * A session printing to {@code System.out} and reporting errors to {@code System.err}.
+     */
+    public LoxSession newSession() {
+        return newSession(LoxOutput.console(LoxOutput.Flush.SIZE), LoxOutput.errors());
+    }
+
+    public LoxSession newSession(LoxOutput output, LoxOutput errors) {
+        return new LoxSession(this, output, errors);
+    }
+}
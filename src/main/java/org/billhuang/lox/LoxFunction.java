@@ -7,59 +7,153 @@ import java.util.List;
  * @Data 2022/3/4 16:27
  * @Author huangshb
  **/
-class LoxFunction implements LoxCallable{
+class LoxFunction implements LoxCallable {
+    // what a call in tail position returns instead of a value, see tailCall
+    static final Object TAIL_CALL = new Object();
 
-    private final String name;
-    private final Expr.Function declaration;
-    private final EfficientEnvironment closure;
+    // the compiled declaration, shared by every closure made from it
+    final ExprNode.Closure code;
+    private final Cell[] upvalues;
     private final boolean isInitializer;
+    private final boolean isMethod;
+    // only set on a method that was bound to an instance, i.e. taken as a value
+    final LoxInstance receiver;
 
-    LoxFunction(String name, Expr.Function declaration, EfficientEnvironment closure, boolean isInitializer) {
+    LoxFunction(ExprNode.Closure code, Cell[] upvalues, boolean isInitializer, boolean isMethod,
+                LoxInstance receiver) {
         this.isInitializer = isInitializer;
-        this.name = name;
-        this.declaration = declaration;
-        this.closure = closure;
+        this.code = code;
+        this.upvalues = upvalues;
+        this.isMethod = isMethod;
+        this.receiver = receiver;
     }
 
-
     LoxFunction bind(LoxInstance instance) {
-        EfficientEnvironment environment = new EfficientEnvironment(closure);
-        environment.define("this", instance);
-
-        return new LoxFunction(name, declaration, environment, isInitializer);
+        return new LoxFunction(code, upvalues, isInitializer, isMethod, instance);
     }
 
     @Override
     public int arity() {
-        return declaration.params.size();
+        return code.declaration.params.size();
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        EfficientEnvironment environment = new EfficientEnvironment(closure);
+        return invoke(interpreter, receiver, arguments);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return invoke0(interpreter, receiver);
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        return invoke1(interpreter, receiver, a);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        return invoke2(interpreter, receiver, a, b);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return invoke3(interpreter, receiver, a, b, c);
+    }
+
+    Object invoke(Interpreter interpreter, LoxInstance receiver, List<Object> arguments) {
+        EfficientEnvironment environment = frame(interpreter, receiver);
+        int slot = firstArgument();
         for (int i = 0; i < arguments.size(); i++) {
-             environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+            environment.slots[slot++] = arguments.get(i);
         }
+        return execute(environment, receiver);
+    }
+
+    Object invoke0(Interpreter interpreter, LoxInstance receiver) {
+        return execute(frame(interpreter, receiver), receiver);
+    }
+
+    Object invoke1(Interpreter interpreter, LoxInstance receiver, Object a) {
+        EfficientEnvironment environment = frame(interpreter, receiver);
+        environment.slots[firstArgument()] = a;
+        return execute(environment, receiver);
+    }
+
+    Object invoke2(Interpreter interpreter, LoxInstance receiver, Object a, Object b) {
+        EfficientEnvironment environment = frame(interpreter, receiver);
+        int slot = firstArgument();
+        environment.slots[slot] = a;
+        environment.slots[slot + 1] = b;
+        return execute(environment, receiver);
+    }
 
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return r) {
-            if (isInitializer) {
-                return closure.getAt(0, 0, "this");
+    Object invoke3(Interpreter interpreter, LoxInstance receiver, Object a, Object b, Object c) {
+        EfficientEnvironment environment = frame(interpreter, receiver);
+        int slot = firstArgument();
+        environment.slots[slot] = a;
+        environment.slots[slot + 1] = b;
+        environment.slots[slot + 2] = c;
+        return execute(environment, receiver);
+    }
+
+    /**
+     * A new frame for a call, the caller puts the arguments in from {@link #firstArgument()} on.
+     */
+    EfficientEnvironment frame(Interpreter interpreter, LoxInstance receiver) {
+        EfficientEnvironment environment = new EfficientEnvironment(interpreter, code.frameSize, upvalues);
+        if (isMethod) {
+            environment.slots[0] = receiver;
+        }
+        return environment;
+    }
+
+    int firstArgument() {
+        return isMethod ? 1 : 0;
+    }
+
+    /**
+     * Runs the body in a frame from {@link #frame}, then every call it returns in tail position, in a
+     * loop, so a chain of tail calls takes constant Java stack.
+     */
+    Object execute(EfficientEnvironment environment, LoxInstance receiver) {
+        Interpreter interpreter = environment.interpreter;
+        LoxFunction function = this;
+        while (true) {
+            environment.box(function.code.declaration.cells);
+            if (function.code.body.execute(environment) != Interpreter.Completion.TAIL_CALL) {
+                return function.isInitializer ? receiver : environment.returnValue;
             }
 
-            return r.value;
+            function = interpreter.tailFunction;
+            receiver = interpreter.tailReceiver;
+            environment = interpreter.tailFrame;
+            // the loop owns the call now, the interpreter shouldn't keep it alive
+            interpreter.tailFunction = null;
+            interpreter.tailReceiver = null;
+            interpreter.tailFrame = null;
         }
+    }
 
+    /**
+     * Leaves the call in a frame from {@link #frame} for {@link #execute} to make once the calling
+     * body has finished. An initializer has to return its receiver, so it is called right away.
+     */
+    Object tailCall(EfficientEnvironment environment, LoxInstance receiver) {
         if (isInitializer) {
-            return closure.getAt(0, 0, "this");
+            return execute(environment, receiver);
         }
 
-        return null;
+        Interpreter interpreter = environment.interpreter;
+        interpreter.tailFunction = this;
+        interpreter.tailReceiver = receiver;
+        interpreter.tailFrame = environment;
+        return TAIL_CALL;
     }
 
     @Override
     public String toString() {
-        return String.format("<fn %s>", name);
+        return String.format("<fn %s>", code.name);
     }
 }
@@ -1,7 +1,6 @@
 package org.billhuang.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * @Description
@@ -9,20 +8,28 @@ import java.util.Map;
  * @Author huangshb
  **/
 public class LoxInstance {
+    private static final Object[] NO_FIELDS = new Object[0];
+
     LoxClass loxClass;
-    private final Map<String, Object> fields = new HashMap<>();
+    Shape shape;
+    Object[] fields;
 
     LoxInstance() {
-
+        this.shape = new Shape();
+        this.fields = NO_FIELDS;
     }
 
     LoxInstance(LoxClass loxClass) {
         this.loxClass = loxClass;
+        // the class's shape has no fields, the array grows as they are added
+        this.shape = loxClass.instanceShape;
+        this.fields = NO_FIELDS;
     }
 
     Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+        int offset = shape.offsetOf(name.lexeme);
+        if (offset >= 0) {
+            return fields[offset];
         }
 
         LoxFunction method = loxClass.findMethod(name.lexeme);
@@ -34,7 +41,32 @@ public class LoxInstance {
     }
 
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        set(name.lexeme, value);
+    }
+
+    void set(String name, Object value) {
+        int offset = shape.offsetOf(name);
+        if (offset < 0) {
+            Shape next = shape.withField(name);
+            putField(next, next.size - 1, value);
+        } else {
+            fields[offset] = value;
+        }
+    }
+
+    /**
+     * Stores a field whose offset is already known, moving to the shape that has it.
+     */
+    void putField(Shape next, int offset, Object value) {
+        if (next != shape) {
+            shape = next;
+            if (offset >= fields.length) {
+                // doubling keeps the copies few without sizing every instance for the largest one
+                fields = Arrays.copyOf(fields, Math.max(offset + 1, Math.max(4, fields.length * 2)));
+            }
+        }
+
+        fields[offset] = value;
     }
 
     @Override
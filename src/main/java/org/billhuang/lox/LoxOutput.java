@@ -0,0 +1,140 @@
+package org.billhuang.lox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * @Description Where {@code print} writes.
+ *
+ * Printed lines are collected in a buffer and handed to the target in one write when the flush
+ * policy says so, and whenever the buffer is flushed explicitly, e.g. at the end of a run or before
+ * an error is reported. A memory output keeps everything for {@link #contents()} instead.
+ *
+ * @Data 2022/3/22 10:20
+ * @Author huangshb
+ **/
+public class LoxOutput implements Closeable {
+    public enum Flush {
+        // after every line, for interactive use
+        LINE,
+        // whenever the buffer is full
+        SIZE,
+        // only when asked to, the buffer grows as needed
+        EXIT
+    }
+
+    public static final int DEFAULT_SIZE = 8192;
+
+    private enum Kind {
+        WRITER,
+        STDOUT,
+        STDERR,
+        MEMORY
+    }
+
+    // only for WRITER
+    private final Writer target;
+    private final Kind kind;
+    private final int size;
+    private final Flush policy;
+    private final StringBuilder buffer;
+
+    public LoxOutput(Writer target, int size, Flush policy) {
+        this(target, Kind.WRITER, size, policy);
+    }
+
+    private LoxOutput(Writer target, Kind kind, int size, Flush policy) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive: " + size);
+        }
+
+        this.target = target;
+        this.kind = kind;
+        this.size = size;
+        this.policy = policy;
+        this.buffer = new StringBuilder(Math.min(size, DEFAULT_SIZE));
+    }
+
+    /**
+     * Writes to whatever {@code System.out} is when the buffer is flushed.
+     */
+    public static LoxOutput console(int size, Flush policy) {
+        return new LoxOutput(null, Kind.STDOUT, size, policy);
+    }
+
+    public static LoxOutput console(Flush policy) {
+        return console(DEFAULT_SIZE, policy);
+    }
+
+    /**
+     * Writes to whatever {@code System.err} is, line by line.
+     */
+    public static LoxOutput errors() {
+        return new LoxOutput(null, Kind.STDERR, DEFAULT_SIZE, Flush.LINE);
+    }
+
+    public static LoxOutput memory() {
+        return new LoxOutput(null, Kind.MEMORY, DEFAULT_SIZE, Flush.EXIT);
+    }
+
+    /**
+     * Writes UTF-8 to a new or truncated file, close the output to close the file.
+     */
+    public static LoxOutput file(Path path, int size, Flush policy) throws IOException {
+        return new LoxOutput(new OutputStreamWriter(Files.newOutputStream(path), StandardCharsets.UTF_8),
+                Kind.WRITER, size, policy);
+    }
+
+    void println(String line) {
+        buffer.append(line).append(System.lineSeparator());
+        if (policy == Flush.LINE || (policy == Flush.SIZE && buffer.length() >= size)) {
+            flush();
+        }
+    }
+
+    public void flush() {
+        if (kind == Kind.MEMORY || buffer.length() == 0) {
+            return;
+        }
+
+        switch (kind) {
+            case STDOUT:
+                System.out.append(buffer);
+                System.out.flush();
+                break;
+            case STDERR:
+                System.err.append(buffer);
+                System.err.flush();
+                break;
+            default:
+                try {
+                    target.append(buffer);
+                    target.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+        }
+        buffer.setLength(0);
+    }
+
+    /**
+     * Everything a memory output has been given, nothing for other outputs once they are flushed.
+     */
+    public String contents() {
+        return buffer.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        if (target != null) {
+            target.close();
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package org.billhuang.lox;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * @Description One independent place to run Lox code: its own globals, output and errors.
+ *
+ * Globals live as long as the session, so code run later sees what earlier code defined, like in
+ * the REPL. A session runs one piece of code at a time, different sessions share no mutable state
+ * and can run on different threads at once. Sessions are made by a {@link LoxEngine}.
+ *
+ * @Data 2022/3/22 14:10
+ * @Author huangshb
+ **/
+public class LoxSession {
+    // the session running on this thread, where Lox.error and Lox.runtimeError report to
+    private static final ThreadLocal<LoxSession> CURRENT = new ThreadLocal<>();
+
+    private final LoxEngine engine;
+    private final Interpreter interpreter = new Interpreter();
+    private LoxOutput output;
+    private LoxOutput errors;
+    private boolean hadError = false;
+    private boolean hadRuntimeError = false;
+
+    LoxSession(LoxEngine engine, LoxOutput output, LoxOutput errors) {
+        this.engine = engine;
+        this.errors = errors;
+        setOutput(output);
+    }
+
+    static LoxSession current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Runs a script, returns false if it had a syntax or runtime error.
+     */
+    public synchronized boolean run(String source) {
+        return within(() -> run(new Scanner(source).scan(), false));
+    }
+
+    /**
+     * Runs a script read as it is parsed, like {@link #run(String)} without holding all of it in
+     * memory first.
+     */
+    public synchronized boolean run(Reader source) throws IOException {
+        return run(source, false);
+    }
+
+    /**
+     * Runs a script that is the whole program, like a file given on the command line. Nothing runs
+     * after it on these globals, so the global functions it never calls are dropped.
+     */
+    synchronized boolean runProgram(Reader source) throws IOException {
+        return run(source, true);
+    }
+
+    /**
+     * Runs a line from the prompt, an expression has its value printed.
+     */
+    public synchronized boolean runRepl(String source) {
+        return within(() -> {
+            repl(source);
+            return succeeded();
+        });
+    }
+
+    /**
+     * Compiles a script once for any number of runs, or takes it from the engine's cache if the
+     * same source was compiled before. Returns null if the script has errors, they are reported
+     * like the errors of {@link #run(String)}.
+     */
+    public synchronized CompiledScript compile(String source) {
+        String hash = ScriptCache.hash(source);
+        CompiledScript cached = engine.cache().get(hash);
+        if (cached != null) {
+            return cached;
+        }
+
+        return within(() -> {
+            CompiledScript script = prepare(new Scanner(source).scan(), Globals.withNatives(), true);
+            if (script != null) {
+                engine.cache().put(hash, script);
+            }
+            return script;
+        });
+    }
+
+    /**
+     * Compiles a script file like {@link #compile(String)}, keeping the result in a {@code .loxc}
+     * snapshot next to it. A later call, in this or another process, loads the snapshot instead of
+     * compiling the file again as long as the file hasn't changed. A snapshot that can't be written,
+     * e.g. in a read-only directory, is skipped.
+     */
+    public synchronized CompiledScript compile(Path file) throws IOException {
+        String source = new String(Files.readAllBytes(file), Charset.defaultCharset());
+        String hash = ScriptCache.hash(source);
+        CompiledScript cached = engine.cache().get(hash);
+        if (cached != null) {
+            return cached;
+        }
+
+        Path snapshot = ScriptSnapshot.pathFor(file);
+        CompiledScript script = ScriptSnapshot.read(snapshot, hash);
+        if (script == null) {
+            script = within(() -> prepare(new Scanner(source).scan(), Globals.withNatives(), true));
+            if (script == null) {
+                return null;
+            }
+            try {
+                ScriptSnapshot.write(snapshot, hash, script);
+            } catch (IOException e) {
+                // compiled anyway, the next run just compiles again
+            }
+        }
+        engine.cache().put(hash, script);
+        return script;
+    }
+
+    /**
+     * Runs a compiled script on fresh globals, so neither the session nor other runs see what it
+     * defines. Returns false if it had a runtime error.
+     */
+    public synchronized boolean run(CompiledScript script) {
+        return within(() -> {
+            hadError = false;
+            hadRuntimeError = false;
+            CompiledScript.Nodes nodes = script.acquire();
+            try {
+                Interpreter runner = new Interpreter(nodes.globals);
+                runner.output = output;
+                runner.interpret(nodes.statements, nodes.frameSize);
+            } finally {
+                script.release(nodes);
+            }
+            return succeeded();
+        });
+    }
+
+    public synchronized void setOutput(LoxOutput output) {
+        if (this.output != null) {
+            this.output.flush();
+        }
+        this.output = output;
+        interpreter.output = output;
+    }
+
+    public synchronized void setErrors(LoxOutput errors) {
+        this.errors = errors;
+    }
+
+    public synchronized LoxOutput output() {
+        return output;
+    }
+
+    public synchronized boolean hadError() {
+        return hadError;
+    }
+
+    public synchronized boolean hadRuntimeError() {
+        return hadRuntimeError;
+    }
+
+    /**
+     * Makes this the session errors are reported to while the action runs, and flushes what it
+     * printed.
+     */
+    private <T> T within(Supplier<T> action) {
+        LoxSession previous = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            return action.get();
+        } finally {
+            output.flush();
+            CURRENT.set(previous);
+        }
+    }
+
+    private boolean succeeded() {
+        return !hadError && !hadRuntimeError;
+    }
+
+    private boolean run(Reader source, boolean wholeProgram) throws IOException {
+        try {
+            return within(() -> run(new Scanner(source).scan(), wholeProgram));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private boolean run(TokenBuffer tokens, boolean wholeProgram) {
+        CompiledScript script = prepare(tokens, interpreter.globals, wholeProgram);
+        if (script != null) {
+            interpreter.interpret(script.statements, script.slotCount);
+        }
+        return succeeded();
+    }
+
+    /**
+     * Parses, resolves and optimizes a script against the given globals, null if it has errors.
+     * Only a whole program, that nothing else runs on the same globals after, drops the global
+     * functions it doesn't call.
+     */
+    private CompiledScript prepare(TokenBuffer tokens, Globals globals, boolean wholeProgram) {
+        hadError = false;
+        hadRuntimeError = false;
+
+        Parser parser = new Parser(tokens);
+        List<Stmt> statements = parser.parse();
+
+        // Stop if there was a syntax error.
+        if (hadError) {
+            return null;
+        }
+
+        Resolver resolver = new Resolver(globals);
+        resolver.resolve(statements);
+
+        if (hadError) {
+            return null;
+        }
+
+        return new CompiledScript(optimize(statements, resolver, wholeProgram), resolver.slotCount(), globals);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void repl(String source) {
+        hadError = false;
+        hadRuntimeError = false;
+
+        Parser parser = new Parser(new Scanner(source).scan());
+        Object syntax = parser.parseRepl();
+
+        if (hadError) {
+            return;
+        }
+
+        Resolver resolver = new Resolver(interpreter.globals);
+        if (syntax instanceof List) {
+            List<Stmt> statements = (List<Stmt>) syntax;
+            resolver.resolve(statements);
+
+            if (hadError) {
+                return;
+            }
+
+            interpreter.interpret(optimize(statements, resolver, false), resolver.slotCount());
+        } else if (syntax instanceof Expr) {
+            resolver.resolve((Expr) syntax);
+
+            if (hadError) {
+                return;
+            }
+
+            String result = interpreter.interpret(new Optimizer().optimize((Expr) syntax));
+            output.println(String.valueOf(result));
+        }
+    }
+
+    private List<Stmt> optimize(List<Stmt> statements, Resolver resolver, boolean wholeProgram) {
+        Optimizer optimizer = new Optimizer(resolver, wholeProgram);
+        List<Stmt> optimized = optimizer.optimize(statements);
+        if (engine.reportEliminated) {
+            for (String message : optimizer.eliminated) {
+                errors.println(message);
+            }
+        }
+        return optimized;
+    }
+
+    void error(int line, String where, String message) {
+        output.flush();
+        errors.println(String.format("[line %s ], Error%s: %s", line, where, message));
+        hadError = true;
+    }
+
+    void runtimeError(RuntimeError error) {
+        output.flush();
+        errors.println(String.format("%s \n[line %s ]", error.getMessage(), error.line));
+        hadRuntimeError = true;
+    }
+}
@@ -0,0 +1,445 @@
+package org.billhuang.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @Description Turns the resolved AST into {@link ExprNode}/{@link StmtNode} trees.
+ *
+ * All decisions that don't depend on runtime values, e.g. the operator, how a variable is stored or
+ * whether a call goes through a method, are made once here instead of on every evaluation.
+ *
+ * Calls of small global functions are inlined: a function whose whole body is one return of a
+ * short expression, that captures nothing and doesn't call itself, has that expression compiled
+ * into each call site, with its parameters in extra slots of the caller's frame.
+ *
+ * What changes at runtime, inline caches and type feedback, only lives in the nodes. The AST is only
+ * read, so one resolved AST can be compiled again for runs of a cached script that overlap.
+ *
+ * @Data 2022/3/21 10:05
+ * @Author huangshb
+ **/
+class NodeCompiler implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+    private static final ExprNode NIL = new ExprNode.Constant(null);
+    // expressions up to this many nodes are inlined
+    private static final int INLINE_SIZE = 16;
+
+    private final Globals globals;
+    // global index -> the function a script declares there, if it is worth inlining
+    private final Map<Integer, Expr.Function> inlinable = new HashMap<>();
+    // every inline cache of the nodes, so they can be emptied before the nodes run again
+    private final List<InlineCache> caches = new ArrayList<>();
+    // the frame being compiled: the next slot an inlined call can use and the size so far
+    private int inlineTop = 0;
+    private int frameSize = 0;
+    // while compiling an inlined body its locals are moved up by this offset
+    private int slotOffset = 0;
+    private boolean inlining = false;
+
+    NodeCompiler(Globals globals) {
+        this.globals = globals;
+    }
+
+    /**
+     * Compiles top-level statements that the Resolver gave a frame of slotCount slots, see
+     * {@link #frameSize()} for the size they need now.
+     */
+    StmtNode[] compileScript(List<Stmt> statements, int slotCount) {
+        Map<Integer, Stmt.Function> declared = new HashMap<>();
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Function && ((Stmt.Function) statement).kind == EfficientEnvironment.GLOBAL) {
+                Stmt.Function function = (Stmt.Function) statement;
+                // a name declared twice holds different functions over time, leave it alone
+                if (declared.containsKey(function.slot)) {
+                    inlinable.remove(function.slot);
+                } else if (isInlinable(function)) {
+                    inlinable.put(function.slot, function.function);
+                }
+                declared.put(function.slot, function);
+            }
+        }
+
+        inlineTop = frameSize = slotCount;
+        return compile(statements);
+    }
+
+    int frameSize() {
+        return frameSize;
+    }
+
+    List<InlineCache> caches() {
+        return caches;
+    }
+
+    private static boolean isInlinable(Stmt.Function declaration) {
+        Expr.Function function = declaration.function;
+        if (function.cells != null || function.captureSlots != null || function.body.size() != 1
+                || !(function.body.get(0) instanceof Stmt.Return)) {
+            return false;
+        }
+
+        Expr value = ((Stmt.Return) function.body.get(0)).value;
+        return value != null && size(value, declaration.name.lexeme) <= INLINE_SIZE;
+    }
+
+    /**
+     * Counts the nodes of an expression, anything that can't be inlined counts as too big.
+     */
+    private static int size(Expr expr, String self) {
+        if (expr instanceof Expr.Literal) {
+            return 1;
+        } else if (expr instanceof Expr.Variable) {
+            return ((Expr.Variable) expr).name.lexeme.equals(self) ? INLINE_SIZE + 1 : 1;
+        } else if (expr instanceof Expr.Grouping) {
+            return size(((Expr.Grouping) expr).expression, self);
+        } else if (expr instanceof Expr.Unary) {
+            return 1 + size(((Expr.Unary) expr).right, self);
+        } else if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            return 1 + size(binary.left, self) + size(binary.right, self);
+        } else if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical) expr;
+            return 1 + size(logical.left, self) + size(logical.right, self);
+        } else if (expr instanceof Expr.Comma) {
+            Expr.Comma comma = (Expr.Comma) expr;
+            return 1 + size(comma.left, self) + size(comma.right, self);
+        } else if (expr instanceof Expr.Conditional) {
+            Expr.Conditional conditional = (Expr.Conditional) expr;
+            return 1 + size(conditional.cond, self) + size(conditional.thenBranch, self)
+                    + size(conditional.elseBranch, self);
+        } else if (expr instanceof Expr.Assign) {
+            return 1 + size(((Expr.Assign) expr).value, self);
+        } else if (expr instanceof Expr.Get) {
+            return 1 + size(((Expr.Get) expr).object, self);
+        } else if (expr instanceof Expr.Set) {
+            Expr.Set set = (Expr.Set) expr;
+            return 1 + size(set.object, self) + size(set.value, self);
+        } else if (expr instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call) expr;
+            int size = 1 + size(call.callee, self);
+            for (Expr argument : call.arguments) {
+                size += size(argument, self);
+            }
+            return size;
+        }
+        // functions, this and super
+        return INLINE_SIZE + 1;
+    }
+
+    StmtNode[] compile(List<Stmt> statements) {
+        StmtNode[] nodes = new StmtNode[statements.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = compile(statements.get(i));
+        }
+        return nodes;
+    }
+
+    StmtNode compile(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(this);
+    }
+
+    ExprNode compile(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    private ExprNode read(int kind, int slot, Token name) {
+        switch (kind) {
+            case EfficientEnvironment.LOCAL:
+                return new ExprNode.LocalRead(slot + slotOffset);
+            case EfficientEnvironment.CELL:
+                return new ExprNode.CellRead(slot);
+            case EfficientEnvironment.UPVALUE:
+                return new ExprNode.UpvalueRead(slot);
+            default:
+                return new ExprNode.GlobalRead(globals, name, slot);
+        }
+    }
+
+    private ExprNode write(int kind, int slot, Token name, ExprNode value) {
+        switch (kind) {
+            case EfficientEnvironment.LOCAL:
+                return new ExprNode.LocalWrite(slot + slotOffset, value);
+            case EfficientEnvironment.CELL:
+                return new ExprNode.CellWrite(slot, value);
+            case EfficientEnvironment.UPVALUE:
+                return new ExprNode.UpvalueWrite(slot, value);
+            default:
+                return new ExprNode.GlobalWrite(globals, name, slot, value);
+        }
+    }
+
+    /**
+     * A declaration writes the variable without checking a global exists first.
+     */
+    private ExprNode define(int kind, int slot, Token name, ExprNode value) {
+        if (kind == EfficientEnvironment.GLOBAL) {
+            return new ExprNode.GlobalDefine(globals, slot, value);
+        }
+        return write(kind, slot, name, value);
+    }
+
+    private ExprNode.Closure closure(String name, Expr.Function function) {
+        int enclosingTop = inlineTop;
+        int enclosingSize = frameSize;
+        inlineTop = frameSize = function.slotCount;
+        StmtNode body = new StmtNode.Block(null, compile(function.body));
+        int size = frameSize;
+        inlineTop = enclosingTop;
+        frameSize = enclosingSize;
+        return new ExprNode.Closure(name, function, body, size);
+    }
+
+    /**
+     * The function a call can be inlined to, or null.
+     */
+    private Expr.Function inlineTarget(Expr.Call expr) {
+        if (inlining || !(expr.callee instanceof Expr.Variable)) {
+            return null;
+        }
+
+        Expr.Variable callee = (Expr.Variable) expr.callee;
+        if (callee.kind != EfficientEnvironment.GLOBAL) {
+            return null;
+        }
+
+        Expr.Function target = inlinable.get(callee.slot);
+        return target != null && target.params.size() == expr.arguments.size() ? target : null;
+    }
+
+    private ExprNode inline(Expr.Call expr, Expr.Function target) {
+        // the slots stay taken while the arguments are compiled, so a call inlined into an argument
+        // uses the slots above them
+        int base = inlineTop;
+        inlineTop = base + target.slotCount;
+        frameSize = Math.max(frameSize, inlineTop);
+
+        ExprNode callee = compile(expr.callee);
+        ExprNode[] arguments = compileArguments(expr);
+
+        slotOffset = base;
+        inlining = true;
+        ExprNode body = compile(((Stmt.Return) target.body.get(0)).value);
+        slotOffset = 0;
+        inlining = false;
+
+        inlineTop = base;
+        return new ExprNode.InlinedCall(expr.paren, callee, arguments, target, base, body);
+    }
+
+    private ExprNode[] compileArguments(Expr.Call expr) {
+        ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        return arguments;
+    }
+
+    @Override
+    public ExprNode visitAssignExpr(Expr.Assign expr) {
+        return write(expr.kind, expr.slot, expr.name, compile(expr.value));
+    }
+
+    @Override
+    public ExprNode visitCommaExpr(Expr.Comma expr) {
+        return new ExprNode.Comma(compile(expr.left), compile(expr.right));
+    }
+
+    @Override
+    public ExprNode visitConditionalExpr(Expr.Conditional expr) {
+        return new ExprNode.Conditional(compile(expr.cond), compile(expr.thenBranch), compile(expr.elseBranch));
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Expr.Binary expr) {
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+
+        switch (expr.operator.type) {
+            case GREATER:
+                return new ExprNode.Greater(expr.operator, left, right);
+            case GREATER_EQUAL:
+                return new ExprNode.GreaterEqual(expr.operator, left, right);
+            case LESS:
+                return new ExprNode.Less(expr.operator, left, right);
+            case LESS_EQUAL:
+                return new ExprNode.LessEqual(expr.operator, left, right);
+            case BANG_EQUAL:
+                return new ExprNode.NotEqual(expr.operator, left, right);
+            case EQUAL_EQUAL:
+                return new ExprNode.Equal(expr.operator, left, right);
+            case PLUS:
+                return new ExprNode.Add(expr.operator, left, right);
+            case MINUS:
+                return new ExprNode.Subtract(expr.operator, left, right);
+            case SLASH:
+                return new ExprNode.Divide(expr.operator, left, right);
+            case STAR:
+                return new ExprNode.Multiply(expr.operator, left, right);
+        }
+
+        throw new IllegalStateException("Unknown binary operator " + expr.operator.lexeme);
+    }
+
+    @Override
+    public ExprNode visitCallExpr(Expr.Call expr) {
+        Expr.Function target = inlineTarget(expr);
+        if (target != null) {
+            return inline(expr, target);
+        }
+
+        ExprNode[] arguments = compileArguments(expr);
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            return new ExprNode.Invoke(expr.paren, compile(get.object), get.name,
+                    cache(InlineCache.INVOKE), arguments);
+        } else if (expr.callee instanceof Expr.Super) {
+            return new ExprNode.SuperInvoke(expr.paren, visitSuperExpr((Expr.Super) expr.callee), arguments);
+        }
+
+        return new ExprNode.Call(expr.paren, compile(expr.callee), arguments);
+    }
+
+    @Override
+    public ExprNode visitGetExpr(Expr.Get expr) {
+        return new ExprNode.Get(compile(expr.object), expr.name, cache(InlineCache.GET));
+    }
+
+    @Override
+    public ExprNode visitSetExpr(Expr.Set expr) {
+        return new ExprNode.Set(compile(expr.object), expr.name, compile(expr.value),
+                cache(InlineCache.SET));
+    }
+
+    private InlineCache cache(InlineCache.Counter counter) {
+        InlineCache cache = new InlineCache(counter);
+        caches.add(cache);
+        return cache;
+    }
+
+    @Override
+    public ExprNode visitThisExpr(Expr.This expr) {
+        return read(expr.kind, expr.slot, expr.keyword);
+    }
+
+    @Override
+    public ExprNode.Super visitSuperExpr(Expr.Super expr) {
+        return new ExprNode.Super(read(expr.kind, expr.slot, expr.keyword), visitThisExpr(expr.receiver),
+                expr.method);
+    }
+
+    @Override
+    public ExprNode visitFunctionExpr(Expr.Function expr) {
+        return closure(null, expr);
+    }
+
+    @Override
+    public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Expr.Literal expr) {
+        return new ExprNode.Constant(expr.value);
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(Expr.Logical expr) {
+        if (expr.operator.type == TokenType.OR) {
+            return new ExprNode.Or(compile(expr.left), compile(expr.right));
+        }
+        return new ExprNode.And(compile(expr.left), compile(expr.right));
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.BANG) {
+            return new ExprNode.Not(compile(expr.right));
+        }
+        return new ExprNode.Negate(expr.operator, compile(expr.right));
+    }
+
+    @Override
+    public ExprNode visitVariableExpr(Expr.Variable expr) {
+        return read(expr.kind, expr.slot, expr.name);
+    }
+
+    @Override
+    public StmtNode visitBlockStmt(Stmt.Block stmt) {
+        return new StmtNode.Block(stmt.cells, compile(stmt.statements));
+    }
+
+    @Override
+    public StmtNode visitClassStmt(Stmt.Class stmt) {
+        ExprNode.Closure[] methods = new ExprNode.Closure[stmt.methods.size()];
+        for (int i = 0; i < methods.length; i++) {
+            Stmt.Function method = stmt.methods.get(i);
+            methods[i] = closure(method.name.lexeme, method.function);
+        }
+
+        ExprNode.Closure[] staticMethods = new ExprNode.Closure[stmt.staticMethods.size()];
+        for (int i = 0; i < staticMethods.length; i++) {
+            Stmt.Function method = stmt.staticMethods.get(i);
+            staticMethods[i] = closure(method.name.lexeme, method.function);
+        }
+
+        Token superclassName = stmt.superclass == null ? null : stmt.superclass.name;
+        return new StmtNode.Class(stmt.name.lexeme, stmt.kind, stmt.slot, compile(stmt.superclass), superclassName,
+                stmt.superSlot, methods, staticMethods);
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+        return new StmtNode.Expression(compile(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitFunctionStmt(Stmt.Function stmt) {
+        ExprNode function = closure(stmt.name.lexeme, stmt.function);
+        return new StmtNode.Expression(define(stmt.kind, stmt.slot, stmt.name, function));
+    }
+
+    @Override
+    public StmtNode visitIfStmt(Stmt.If stmt) {
+        return new StmtNode.If(compile(stmt.condition), compile(stmt.thenBranch), compile(stmt.elseBranch));
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(Stmt.While stmt) {
+        return new StmtNode.While(compile(stmt.condition), compile(stmt.body));
+    }
+
+    @Override
+    public StmtNode visitForStmt(Stmt.For stmt) {
+        return new StmtNode.For(compile(stmt.initializer), compile(stmt.condition), compile(stmt.increment),
+                compile(stmt.body));
+    }
+
+    @Override
+    public StmtNode visitPrintStmt(Stmt.Print stmt) {
+        return new StmtNode.Print(compile(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitBreakStmt(Stmt.Break stmt) {
+        return StmtNode.Break.INSTANCE;
+    }
+
+    @Override
+    public StmtNode visitReturnStmt(Stmt.Return stmt) {
+        ExprNode value = compile(stmt.value);
+        if (stmt.tailCall && value instanceof ExprNode.AbstractCall) {
+            ExprNode.AbstractCall call = (ExprNode.AbstractCall) value;
+            call.tail = true;
+            return new StmtNode.TailCall(call);
+        }
+        return new StmtNode.Return(value);
+    }
+
+    @Override
+    public StmtNode visitVarStmt(Stmt.Var stmt) {
+        ExprNode value = stmt.initializer == null ? NIL : compile(stmt.initializer);
+        return new StmtNode.Expression(define(stmt.kind, stmt.slot, stmt.name, value));
+    }
+}
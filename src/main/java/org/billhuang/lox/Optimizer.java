@@ -0,0 +1,522 @@
+package org.billhuang.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @Description Folds constant subexpressions of the resolved tree before it is run.
+ *
+ * Operators whose operands are all literals are evaluated here with the same rules the interpreter
+ * uses, groupings are dropped, and conditionals and logicals with a literal on the left pick their
+ * branch. An operation that would fail at runtime, e.g. a division by zero, is left alone so the
+ * error is still reported, with its line, when the code runs.
+ *
+ * With the Resolver's results it also removes dead code: unused locals with side effect free
+ * initializers, unused functions, branches behind constant conditions and statements after a
+ * return or break. What was removed is listed in {@link #eliminated}.
+ *
+ * Nodes whose children didn't change are reused, so the Resolver's results on them are kept.
+ *
+ * @Data 2022/3/21 15:40
+ * @Author huangshb
+ **/
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    // stands in for a statement that was removed where a statement is required, e.g. an if branch
+    private static final Stmt EMPTY = new Stmt.Block(Collections.emptyList());
+
+    private final Resolver resolver;
+    private final boolean wholeProgram;
+    final List<String> eliminated = new ArrayList<>();
+
+    /**
+     * Only folds constants, nothing is known about how variables are used.
+     */
+    Optimizer() {
+        this(null, false);
+    }
+
+    /**
+     * @param wholeProgram the statements are a complete script, so a global function it never
+     *                     refers to can't be called by anything else either
+     */
+    Optimizer(Resolver resolver, boolean wholeProgram) {
+        this.resolver = resolver;
+        this.wholeProgram = wholeProgram;
+    }
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        List<Stmt> result = null;
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt statement = statements.get(i);
+            Stmt optimized = isUnused(statement) ? EMPTY : optimize(statement);
+            if (optimized != statement && result == null) {
+                result = new ArrayList<>(statements.subList(0, i));
+            }
+            if (result != null && optimized != EMPTY) {
+                result.add(optimized);
+            }
+
+            Token terminator = i + 1 < statements.size() ? terminator(optimized) : null;
+            if (terminator != null) {
+                report(terminator, "Removed unreachable code after '%s'.", terminator.lexeme);
+                if (result == null) {
+                    result = new ArrayList<>(statements.subList(0, i + 1));
+                }
+                break;
+            }
+        }
+        return result == null ? statements : result;
+    }
+
+    /**
+     * Returns the return or break that always ends the statement, or null if it can complete
+     * normally.
+     */
+    private static Token terminator(Stmt stmt) {
+        if (stmt instanceof Stmt.Return) {
+            return ((Stmt.Return) stmt).keyword;
+        } else if (stmt instanceof Stmt.Break) {
+            return ((Stmt.Break) stmt).name;
+        } else if (stmt instanceof Stmt.Block) {
+            List<Stmt> statements = ((Stmt.Block) stmt).statements;
+            return statements.isEmpty() ? null : terminator(statements.get(statements.size() - 1));
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            if (ifStmt.elseBranch != null && terminator(ifStmt.elseBranch) != null) {
+                return terminator(ifStmt.thenBranch);
+            }
+        }
+        return null;
+    }
+
+    private boolean isUnused(Stmt stmt) {
+        if (resolver == null) {
+            return false;
+        }
+
+        if (stmt instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var) stmt;
+            if (resolver.isUnused(var) && isPure(optimize(var.initializer))) {
+                report(var.name, "Removed unused variable '%s'.", var.name.lexeme);
+                return true;
+            }
+        } else if (stmt instanceof Stmt.Function) {
+            Stmt.Function function = (Stmt.Function) stmt;
+            boolean unused = function.kind == EfficientEnvironment.GLOBAL
+                    ? wholeProgram && !resolver.isReferenced(function.name.lexeme)
+                    : resolver.isUnused(function);
+            if (unused) {
+                report(function.name, "Removed unused function '%s'.", function.name.lexeme);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether evaluating the expression can neither fail nor change anything.
+     */
+    private static boolean isPure(Expr expr) {
+        return expr == null
+                || expr instanceof Expr.Literal
+                || expr instanceof Expr.Function
+                || expr instanceof Expr.This
+                || expr instanceof Expr.Variable && ((Expr.Variable) expr).kind != EfficientEnvironment.GLOBAL;
+    }
+
+    private void report(Token token, String format, Object... args) {
+        eliminated.add(String.format("[line %s] ", token.line) + String.format(format, args));
+    }
+
+    Stmt optimize(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(this);
+    }
+
+    Expr optimize(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    private List<Expr> optimizeAll(List<Expr> exprs) {
+        List<Expr> result = null;
+        for (int i = 0; i < exprs.size(); i++) {
+            Expr expr = exprs.get(i);
+            Expr optimized = optimize(expr);
+            if (optimized != expr && result == null) {
+                result = new ArrayList<>(exprs.subList(0, i));
+            }
+            if (result != null) {
+                result.add(optimized);
+            }
+        }
+        return result == null ? exprs : result;
+    }
+
+    private static boolean isNumber(Expr expr) {
+        return expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double;
+    }
+
+    private static double number(Expr expr) {
+        return (double) ((Expr.Literal) expr).value;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+        if (value == expr.value) {
+            return expr;
+        }
+
+        Expr.Assign assign = new Expr.Assign(expr.name, value);
+        assign.kind = expr.kind;
+        assign.slot = expr.slot;
+        return assign;
+    }
+
+    @Override
+    public Expr visitCommaExpr(Expr.Comma expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (left instanceof Expr.Literal) {
+            return right;
+        }
+        if (left == expr.left && right == expr.right) {
+            return expr;
+        }
+        return new Expr.Comma(left, right);
+    }
+
+    @Override
+    public Expr visitConditionalExpr(Expr.Conditional expr) {
+        Expr cond = optimize(expr.cond);
+        if (cond instanceof Expr.Literal) {
+            return Interpreter.isTruthy(((Expr.Literal) cond).value)
+                    ? optimize(expr.thenBranch)
+                    : optimize(expr.elseBranch);
+        }
+
+        Expr thenBranch = optimize(expr.thenBranch);
+        Expr elseBranch = optimize(expr.elseBranch);
+        if (cond == expr.cond && thenBranch == expr.thenBranch && elseBranch == expr.elseBranch) {
+            return expr;
+        }
+        return new Expr.Conditional(cond, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        Object folded = fold(expr.operator, left, right);
+        if (folded != null) {
+            return new Expr.Literal(folded);
+        }
+        if (left == expr.left && right == expr.right) {
+            return expr;
+        }
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    /**
+     * Returns the value of a binary operator on two literals, or null when it has to be left to
+     * the runtime. No operator produces nil, so null is never a folded value.
+     */
+    private Object fold(Token operator, Expr left, Expr right) {
+        if (!(left instanceof Expr.Literal) || !(right instanceof Expr.Literal)) {
+            return null;
+        }
+
+        Object a = ((Expr.Literal) left).value;
+        Object b = ((Expr.Literal) right).value;
+        switch (operator.type) {
+            case BANG_EQUAL:
+                return !Interpreter.isEqual(a, b);
+            case EQUAL_EQUAL:
+                return Interpreter.isEqual(a, b);
+            case PLUS:
+                if (a instanceof Double && b instanceof Double) {
+                    return (double) a + (double) b;
+                } else if (Interpreter.isStringOrNum(a) && Interpreter.isStringOrNum(b)) {
+                    return a.toString() + b.toString();
+                }
+                return null;
+        }
+
+        if (!isNumber(left) || !isNumber(right)) {
+            return null;
+        }
+
+        double x = number(left);
+        double y = number(right);
+        switch (operator.type) {
+            case GREATER:
+                return x > y;
+            case GREATER_EQUAL:
+                return x >= y;
+            case LESS:
+                return x < y;
+            case LESS_EQUAL:
+                return x <= y;
+            case MINUS:
+                return x - y;
+            case STAR:
+                return x * y;
+            case SLASH:
+                // dividing by zero is a runtime error, leave it to be reported when it runs
+                if (Double.compare(y, 0.0) == 0) {
+                    return null;
+                }
+                return x / y;
+        }
+        return null;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = optimize(expr.callee);
+        List<Expr> arguments = optimizeAll(expr.arguments);
+        if (callee == expr.callee && arguments == expr.arguments) {
+            return expr;
+        }
+
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = optimize(expr.object);
+        if (object == expr.object) {
+            return expr;
+        }
+
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+        if (object == expr.object && value == expr.value) {
+            return expr;
+        }
+
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr.Function visitFunctionExpr(Expr.Function expr) {
+        List<Stmt> body = optimize(expr.body);
+        if (body == expr.body) {
+            return expr;
+        }
+
+        Expr.Function function = new Expr.Function(expr.params, body);
+        function.slotCount = expr.slotCount;
+        function.cells = expr.cells;
+        function.captureLocals = expr.captureLocals;
+        function.captureSlots = expr.captureSlots;
+        return function;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (left instanceof Expr.Literal) {
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal) left).value);
+            boolean shortCircuits = expr.operator.type == TokenType.OR ? truthy : !truthy;
+            return shortCircuits ? left : right;
+        }
+        if (left == expr.left && right == expr.right) {
+            return expr;
+        }
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+        if (right instanceof Expr.Literal && expr.operator.type == TokenType.BANG) {
+            return new Expr.Literal(!Interpreter.isTruthy(((Expr.Literal) right).value));
+        } else if (isNumber(right) && expr.operator.type == TokenType.MINUS) {
+            return new Expr.Literal(-number(right));
+        }
+
+        if (right == expr.right) {
+            return expr;
+        }
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = optimize(stmt.statements);
+        if (statements == stmt.statements) {
+            return stmt;
+        }
+
+        Stmt.Block block = new Stmt.Block(statements);
+        block.cells = stmt.cells;
+        return block;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt.Function> methods = optimizeMethods(stmt.methods);
+        List<Stmt.Function> staticMethods = optimizeMethods(stmt.staticMethods);
+        if (methods == stmt.methods && staticMethods == stmt.staticMethods) {
+            return stmt;
+        }
+
+        Stmt.Class klass = new Stmt.Class(stmt.name, stmt.superclass, methods, staticMethods);
+        klass.kind = stmt.kind;
+        klass.slot = stmt.slot;
+        klass.superSlot = stmt.superSlot;
+        return klass;
+    }
+
+    private List<Stmt.Function> optimizeMethods(List<Stmt.Function> methods) {
+        List<Stmt.Function> result = null;
+        for (int i = 0; i < methods.size(); i++) {
+            Stmt.Function method = methods.get(i);
+            Stmt.Function optimized = visitFunctionStmt(method);
+            if (optimized != method && result == null) {
+                result = new ArrayList<>(methods.subList(0, i));
+            }
+            if (result != null) {
+                result.add(optimized);
+            }
+        }
+        return result == null ? methods : result;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt.Function visitFunctionStmt(Stmt.Function stmt) {
+        Expr.Function function = visitFunctionExpr(stmt.function);
+        if (function == stmt.function) {
+            return stmt;
+        }
+
+        Stmt.Function declaration = new Stmt.Function(stmt.name, function);
+        declaration.kind = stmt.kind;
+        declaration.slot = stmt.slot;
+        return declaration;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal) {
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal) condition).value);
+            if (!truthy || stmt.elseBranch != null) {
+                report(stmt.keyword, "Removed the %s branch of an 'if' whose condition is always %s.",
+                        truthy ? "else" : "then", truthy);
+            }
+            Stmt taken = truthy ? stmt.thenBranch : stmt.elseBranch;
+            return taken == null ? EMPTY : optimize(taken);
+        }
+
+        Stmt thenBranch = optimize(stmt.thenBranch);
+        Stmt elseBranch = optimize(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        return new Stmt.If(stmt.keyword, condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal) condition).value)) {
+            report(stmt.keyword, "Removed a 'while' loop whose condition is always false.");
+            return EMPTY;
+        }
+
+        Stmt body = optimize(stmt.body);
+        if (condition == stmt.condition && body == stmt.body) {
+            return stmt;
+        }
+        return new Stmt.While(stmt.keyword, condition, body);
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        Stmt initializer = optimize(stmt.initializer);
+        Expr condition = optimize(stmt.condition);
+        Expr increment = optimize(stmt.increment);
+        Stmt body = optimize(stmt.body);
+        if (initializer == stmt.initializer && condition == stmt.condition && increment == stmt.increment
+                && body == stmt.body) {
+            return stmt;
+        }
+        return new Stmt.For(initializer, condition, increment, body);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = optimize(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Stmt.Break stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        Expr value = optimize(stmt.value);
+        if (value == stmt.value) {
+            return stmt;
+        }
+
+        Stmt.Return result = new Stmt.Return(stmt.keyword, value);
+        result.tailCall = stmt.tailCall && value instanceof Expr.Call;
+        return result;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = optimize(stmt.initializer);
+        if (initializer == stmt.initializer) {
+            return stmt;
+        }
+
+        Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+        var.kind = stmt.kind;
+        var.slot = stmt.slot;
+        return var;
+    }
+}
@@ -65,7 +65,7 @@ import java.util.List;
  * @Author huangshb
  **/
 public class Parser {
-    private final List<Token> tokens;
+    private final TokenBuffer tokens;
     private int current = 0;
 
     private boolean allowExpression;
@@ -74,6 +74,10 @@ public class Parser {
     private int loopDepth = 0;
 
     Parser(List<Token> tokens) {
+        this(TokenBuffer.of(tokens));
+    }
+
+    Parser(TokenBuffer tokens) {
         this.tokens = tokens;
     }
 
@@ -120,14 +124,14 @@ public class Parser {
     private Stmt declaration() {
         try{
             if (check(TokenType.CLASS, TokenType.IDENTIFIER, TokenType.LEFT_BRACE)) {
-                consume(TokenType.CLASS, null);
+                expect(TokenType.CLASS, null);
                 return classDecl();
             }
             if (match(TokenType.CLASS)) {
                 return classDecl();
             }
             if (check(TokenType.FUN) && checkNext(TokenType.IDENTIFIER)) {
-                consume(TokenType.FUN, null);
+                expect(TokenType.FUN, null);
                 return funDecl();
             }
             if (match(TokenType.VAR)) {
@@ -150,25 +154,25 @@ public class Parser {
 
         Expr.Variable superclass = null;
         if (match(TokenType.LESS)) {
-            consume(TokenType.IDENTIFIER, "Expect super class name.");
+            expect(TokenType.IDENTIFIER, "Expect super class name.");
             superclass = new Expr.Variable(previous());
         }
 
-        consume(TokenType.LEFT_BRACE, "Expect '{' after class name.");
+        expect(TokenType.LEFT_BRACE, "Expect '{' after class name.");
 
         List<Stmt.Function> functions = new ArrayList<>();
         List<Stmt.Function> staticFunctions = new ArrayList<>();
 
         while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
             if (check(TokenType.CLASS, TokenType.IDENTIFIER, TokenType.LEFT_PAREN)) {
-                consume(TokenType.CLASS, "Expect 'class' keyword before static function name.");
+                expect(TokenType.CLASS, "Expect 'class' keyword before static function name.");
                 staticFunctions.add(funDecl());
             } else {
                 functions.add(funDecl());
             }
         }
 
-        consume(TokenType.RIGHT_BRACE, "Expect '}' after class body.");
+        expect(TokenType.RIGHT_BRACE, "Expect '}' after class body.");
 
         return new Stmt.Class(className, superclass, functions, staticFunctions);
     }
@@ -191,7 +195,7 @@ public class Parser {
      * @return
      */
     private Expr.Function functionBody() {
-        consume(TokenType.LEFT_PAREN, "Expect '(' after function name.");
+        expect(TokenType.LEFT_PAREN, "Expect '(' after function name.");
         List<Token> params = new ArrayList<>();
 
         if (!check(TokenType.RIGHT_PAREN)) {
@@ -202,9 +206,9 @@ public class Parser {
                 params.add(consume(TokenType.IDENTIFIER, "Expect parameter name"));
             } while (match(TokenType.COMMA));
         }
-        consume(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
+        expect(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
 
-        consume(TokenType.LEFT_BRACE, "Expect '{' before function body.");
+        expect(TokenType.LEFT_BRACE, "Expect '{' before function body.");
         List<Stmt> body = block();
 
         return new Expr.Function(params, body);
@@ -221,7 +225,7 @@ public class Parser {
             initializer = expression();
         }
 
-        consume(TokenType.SEMICOLON, "Expect ';' after variable declaration.");
+        expect(TokenType.SEMICOLON, "Expect ';' after variable declaration.");
         return new Stmt.Var(name, initializer);
     }
 
@@ -266,9 +270,10 @@ public class Parser {
      * @return
      */
     private Stmt ifStmt() {
-        consume(TokenType.LEFT_PAREN, "Expect '(' after if.");
+        Token keyword = previous();
+        expect(TokenType.LEFT_PAREN, "Expect '(' after if.");
         Expr condition = expression();
-        consume(TokenType.RIGHT_PAREN, "Expect ')' after if condition.");
+        expect(TokenType.RIGHT_PAREN, "Expect ')' after if condition.");
 
         Stmt thenBranch = statement();
         Stmt elseBranch = null;
@@ -276,7 +281,7 @@ public class Parser {
             elseBranch = statement();
         }
 
-        return new Stmt.If(condition, thenBranch, elseBranch);
+        return new Stmt.If(keyword, condition, thenBranch, elseBranch);
     }
 
     /**
@@ -286,13 +291,14 @@ public class Parser {
     private Stmt whileStmt() {
         try {
             loopDepth++;
-            consume(TokenType.LEFT_PAREN, "Expect '(' after where.");
+            Token keyword = previous();
+            expect(TokenType.LEFT_PAREN, "Expect '(' after where.");
             Expr condition = expression();
-            consume(TokenType.RIGHT_PAREN, "Expect ')' after where condition.");
+            expect(TokenType.RIGHT_PAREN, "Expect ')' after where condition.");
 
             Stmt body = statement();
 
-            return new Stmt.While(condition, body);
+            return new Stmt.While(keyword, condition, body);
         } finally {
           loopDepth--;
         }
@@ -303,7 +309,7 @@ public class Parser {
      * @return
      */
     private Stmt forStmt() {
-        consume(TokenType.LEFT_PAREN, "Expect '(' after for.");
+        expect(TokenType.LEFT_PAREN, "Expect '(' after for.");
 
         Stmt first = null;
         if (match(TokenType.VAR)) {
@@ -311,20 +317,20 @@ public class Parser {
         } else if (!check(TokenType.SEMICOLON)) {
             first = exprStmt();
         } else {
-            consume(TokenType.SEMICOLON, "Expect ';' after for first.");
+            expect(TokenType.SEMICOLON, "Expect ';' after for first.");
         }
 
         Expr condition = null;
         if (!check(TokenType.SEMICOLON)) {
             condition = expression();
         }
-        consume(TokenType.SEMICOLON, "Expect ';' after for condition.");
+        expect(TokenType.SEMICOLON, "Expect ';' after for condition.");
 
         Expr last = null;
         if (!check(TokenType.SEMICOLON)) {
             last = expression();
         }
-        consume(TokenType.RIGHT_PAREN, "Expect ')' after for last expr.");
+        expect(TokenType.RIGHT_PAREN, "Expect ')' after for last expr.");
 
         Stmt body = statement();
 
@@ -334,7 +340,8 @@ public class Parser {
     private Stmt forStmtDesugar() {
         try {
             loopDepth++;
-            consume(TokenType.LEFT_PAREN, "Expect '(' after for.");
+            Token keyword = previous();
+            expect(TokenType.LEFT_PAREN, "Expect '(' after for.");
 
             Stmt initializer = null;
             if (match(TokenType.VAR)) {
@@ -342,20 +349,20 @@ public class Parser {
             } else if (!check(TokenType.SEMICOLON)) {
                 initializer = exprStmt();
             } else {
-                consume(TokenType.SEMICOLON, "Expect ';' after for first.");
+                expect(TokenType.SEMICOLON, "Expect ';' after for first.");
             }
 
             Expr condition = null;
             if (!check(TokenType.SEMICOLON)) {
                 condition = expression();
             }
-            consume(TokenType.SEMICOLON, "Expect ';' after for condition.");
+            expect(TokenType.SEMICOLON, "Expect ';' after for condition.");
 
             Expr increment = null;
             if (!check(TokenType.SEMICOLON)) {
                 increment = expression();
             }
-            consume(TokenType.RIGHT_PAREN, "Expect ')' after for last expr.");
+            expect(TokenType.RIGHT_PAREN, "Expect ')' after for last expr.");
 
             Stmt body = statement();
 
@@ -366,7 +373,7 @@ public class Parser {
             if (condition == null) {
                 condition = new Expr.Literal(true);
             }
-            body = new Stmt.While(condition, body);
+            body = new Stmt.While(keyword, condition, body);
 
             if (initializer != null) {
                 body = new Stmt.Block(Arrays.asList(initializer, body));
@@ -389,7 +396,7 @@ public class Parser {
             statements.add(declaration());
         }
 
-        consume(TokenType.RIGHT_BRACE, "Expect '}' after block");
+        expect(TokenType.RIGHT_BRACE, "Expect '}' after block");
         return statements;
     }
 
@@ -401,7 +408,7 @@ public class Parser {
         if (allowExpression && isAtEnd()) {
             foundExpression = true;
         } else {
-            consume(TokenType.SEMICOLON, "Expect ';' after expression.");
+            expect(TokenType.SEMICOLON, "Expect ';' after expression.");
         }
 
         return new Stmt.Expression(expr);
@@ -413,7 +420,7 @@ public class Parser {
      */
     private Stmt printStmt() {
         Expr expr = expression();
-        consume(TokenType.SEMICOLON, "Expect ';' after value.");
+        expect(TokenType.SEMICOLON, "Expect ';' after value.");
         return  new Stmt.Print(expr);
     }
 
@@ -422,7 +429,7 @@ public class Parser {
         if (loopDepth <= 0) {
             throw error(previous, "Break must in loop.");
         }
-        consume(TokenType.SEMICOLON, "Except ';' after break.");
+        expect(TokenType.SEMICOLON, "Except ';' after break.");
         return new Stmt.Break(previous);
     }
 
@@ -436,7 +443,7 @@ public class Parser {
         if (!check(TokenType.SEMICOLON)) {
             expr = expression();
         }
-        consume(TokenType.SEMICOLON, "Expect ';' after value.");
+        expect(TokenType.SEMICOLON, "Expect ';' after value.");
 
         return new Stmt.Return(keyword, expr);
     }
@@ -529,7 +536,7 @@ public class Parser {
         Expr expr = equality();
         if (match(TokenType.QUESTION_MARK)) {
             Expr expression = expression();
-            consume(TokenType.COLON, "Expect ':' after then branch of conditional expression.");
+            expect(TokenType.COLON, "Expect ':' after then branch of conditional expression.");
             expr = new Expr.Conditional(expr, expression, conditional());
         }
 
@@ -617,9 +624,9 @@ public class Parser {
      */
     private Expr call() {
         Expr primary = primary();
-        List<Expr> arguments = new ArrayList<>();
         while (true) {
             if (match(TokenType.LEFT_PAREN)) {
+                List<Expr> arguments = new ArrayList<>();
                 if (!check(TokenType.RIGHT_PAREN)) {
                     arguments = arguments();
                 }
@@ -679,7 +686,7 @@ public class Parser {
 
         if (match(TokenType.LEFT_PAREN)) {
             Expr expr = expression();
-            consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
+            expect(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
 
             return new Expr.Grouping(expr);
         }
@@ -694,7 +701,7 @@ public class Parser {
 
         if (match(TokenType.SUPER)) {
             Token keyword = previous();
-            consume(TokenType.DOT, "Expect '.' after 'super'");
+            expect(TokenType.DOT, "Expect '.' after 'super'");
             Token method = consume(TokenType.IDENTIFIER, "Expect superclass method name");
             return new Expr.Super(keyword, method);
 
@@ -715,21 +722,21 @@ public class Parser {
     }
 
     private boolean check(TokenType type) {
-        return isAtEnd() ? false : peek().type == type;
+        return isAtEnd() ? false : tokens.type(current) == type;
     }
 
     private boolean checkNext(TokenType type) {
-        return isAtEnd() || tokens.get(current + 1).type == TokenType.EOF
+        return isAtEnd() || tokens.type(current + 1) == TokenType.EOF
                 ? false
-                : tokens.get(current + 1).type == type;
+                : tokens.type(current + 1) == type;
     }
 
     private boolean checkStep(int step, TokenType type) {
-        if (isAtEnd() || current + step >= tokens.size()) {
+        if (isAtEnd()) {
             return false;
         }
 
-        return tokens.get(current + step).type  == type;
+        return tokens.type(current + step) == type;
     }
 
     private boolean check(TokenType... types) {
@@ -742,29 +749,36 @@ public class Parser {
         return true;
     }
 
-    private Token advance() {
+    private void advance() {
         if (!isAtEnd()) {
             current++;
         }
-
-        return previous();
     }
 
     private boolean isAtEnd() {
-        return peek().type == TokenType.EOF;
+        return tokens.type(current) == TokenType.EOF;
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return tokens.token(current);
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 
     private Token consume(TokenType type, String message) {
+        expect(type, message);
+        return previous();
+    }
+
+    /**
+     * Like {@link #consume} for tokens that aren't kept, so no Token is built for them.
+     */
+    private void expect(TokenType type, String message) {
         if (check(type)) {
-            return advance();
+            advance();
+            return;
         }
 
         throw error(peek(), message);
@@ -779,11 +793,11 @@ public class Parser {
         advance();
 
         while (!isAtEnd()) {
-            if (previous().type == TokenType.SEMICOLON) {
+            if (tokens.type(current - 1) == TokenType.SEMICOLON) {
                 return;
             }
 
-            switch (peek().type) {
+            switch (tokens.type(current)) {
                 case CLASS:
                 case FUN:
                 case VAR:
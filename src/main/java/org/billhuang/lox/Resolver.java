@@ -1,12 +1,23 @@
 package org.billhuang.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
 /**
- * @Description
+ * @Description Resolves every variable to a frame slot, a closure cell or a global index.
+ *
+ * Locals get a fixed slot in the frame of the function that declares them, blocks just continue
+ * numbering inside it. When a nested function uses a local of an outer function the local is
+ * marked captured, every access to it in its own function is switched to go through a {@link Cell},
+ * and each function in between records the cell as one of its upvalues, so a closure only keeps
+ * the variables it actually uses.
+ *
  * @Data 2022/3/8 15:01
  * @Author huangshb
  **/
@@ -27,6 +38,24 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     private class Variable {
         VariableState state;
         int slot;
+        FunctionScope function;
+        boolean captured;
+        // the statement that declared it, null for parameters and implicit variables
+        Stmt declaration;
+        // nodes that access the variable from its own function, switched to CELL once it is captured
+        final List<Object> uses = new ArrayList<>();
+    }
+
+    private static class FunctionScope {
+        final FunctionScope enclosing;
+        int nextSlot = 0;
+        int slotCount = 0;
+        // captured variables of outer functions, in upvalue index order
+        final Map<Variable, Integer> upvalues = new LinkedHashMap<>();
+
+        FunctionScope(FunctionScope enclosing) {
+            this.enclosing = enclosing;
+        }
     }
 
     private enum VariableState {
@@ -35,13 +64,36 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
         READ
     }
 
-    private final Interpreter interpreter;
+    private final Globals globals;
     private final Stack<Map<String, Variable>> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
+    // top-level code runs in a frame of its own, for the locals of blocks and class scopes
+    private FunctionScope currentScope = new FunctionScope(null);
     private ClassType currentClass = ClassType.NONE;
+    // local declarations nothing else reads or assigns, and the globals the code refers to at all
+    private final Set<Stmt> unusedLocals = new HashSet<>();
+    private final Set<String> referencedGlobals = new HashSet<>();
+
+    Resolver(Globals globals) {
+        this.globals = globals;
+    }
+
+    /**
+     * Whether a local declaration is never used, so the Optimizer may drop it.
+     */
+    boolean isUnused(Stmt declaration) {
+        return unusedLocals.contains(declaration);
+    }
+
+    boolean isReferenced(String global) {
+        return referencedGlobals.contains(global);
+    }
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    /**
+     * The frame size the resolved top-level code needs.
+     */
+    int slotCount() {
+        return currentScope.slotCount;
     }
 
     @Override
@@ -53,6 +105,8 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
 
     @Override
     public Void visitCommaExpr(Expr.Comma expr) {
+        resolve(expr.left);
+        resolve(expr.right);
         return null;
     }
 
@@ -114,6 +168,17 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
         }
 
         resolveLocal(expr, expr.keyword, true);
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            if (scopes.get(i).containsKey("this")) {
+                expr.receiver = new Expr.This(new Token(TokenType.THIS, "this", null, expr.keyword.line));
+                resolveLocal(expr.receiver, expr.receiver.keyword, true);
+                return null;
+            }
+        }
+
+        if (currentClass != ClassType.NONE) {
+            Lox.error(expr.keyword, "Can't use 'super' outside of a method.");
+        }
         return null;
     }
 
@@ -162,7 +227,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     public Void visitBlockStmt(Stmt.Block stmt) {
         beginScope();
         resolve(stmt.statements);
-        endScope();
+        stmt.cells = endScope();
         return null;
     }
 
@@ -171,7 +236,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
 
-        declare(stmt.name);
+        declare(stmt.name, stmt);
         define(stmt.name);
 
         if (stmt.superclass != null) {
@@ -182,18 +247,13 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
             currentClass = ClassType.SUPERCLASS;
             resolve(stmt.superclass);
 
+            // the superclass is always kept in a cell, methods are the only ones reading it
             beginScope();
-            Variable _super = new Variable();
-            _super.state = VariableState.READ;
-            scopes.peek().put("super", _super);
+            Variable _super = addVariable("super", VariableState.READ);
+            _super.captured = true;
+            stmt.superSlot = _super.slot;
         }
 
-        beginScope();
-
-        Variable _this = new Variable();
-        _this.state = VariableState.READ;
-        scopes.peek().put("this", _this);
-
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = "init".equals(method.name.lexeme)
                     ? FunctionType.INITIALIZER
@@ -201,13 +261,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
             resolveFunction(method.function, declaration);
         }
 
+        // static methods are called on the class itself and have no receiver
         for (Stmt.Function method : stmt.staticMethods) {
-            FunctionType declaration = FunctionType.METHOD;
-            resolveFunction(method.function, declaration);
+            resolveFunction(method.function, FunctionType.FUNCTION);
         }
 
-        endScope();
-
         if (stmt.superclass != null) {
             endScope();
         }
@@ -225,7 +283,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        declare(stmt.name, stmt);
         define(stmt.name);
 
         resolveFunction(stmt.function, FunctionType.FUNCTION);
@@ -280,6 +338,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
                 Lox.error(stmt.keyword, "Can't return a value from an initializer.");
             }
 
+            stmt.tailCall = stmt.value instanceof Expr.Call;
             resolve(stmt.value);
         }
         return null;
@@ -287,7 +346,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        declare(stmt.name, stmt);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -306,7 +365,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
         stmt.accept(this);
     }
 
-    private void resolve(Expr expr) {
+    void resolve(Expr expr) {
         expr.accept(this);
     }
 
@@ -314,18 +373,42 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
         scopes.push(new HashMap<>());
     }
 
-    private void endScope() {
+    /**
+     * Pops the innermost scope, frees its slots for the next scope of the same function and returns
+     * the slots that have to be boxed when the scope is entered, or null if there are none.
+     */
+    private int[] endScope() {
         Map<String, Variable> variableStatus = scopes.pop();
-        for (Map.Entry<String, Variable> entry: variableStatus.entrySet()) {
-            if (entry.getValue().state == VariableState.DEFINE) {
-                // TODO report error
-                System.out.println("variable never used. var: " + entry.getKey());
+        currentScope.nextSlot -= variableStatus.size();
+
+        int captured = 0;
+        for (Variable variable : variableStatus.values()) {
+            if (variable.state == VariableState.DEFINE && variable.declaration != null
+                    && !variable.captured && variable.uses.size() == 1) {
+                unusedLocals.add(variable.declaration);
+            }
+            if (variable.captured) {
+                captured++;
             }
         }
+
+        if (captured == 0) {
+            return null;
+        }
+
+        int[] cells = new int[captured];
+        int i = 0;
+        for (Variable variable : variableStatus.values()) {
+            if (variable.captured) {
+                cells[i++] = variable.slot;
+            }
+        }
+        return cells;
     }
 
-    private void declare(Token name) {
+    private void declare(Token name, Object node) {
         if (scopes.isEmpty()){
+            record(node, EfficientEnvironment.GLOBAL, globals.indexOf(name.lexeme));
             return;
         }
 
@@ -334,11 +417,25 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
             Lox.error(name, "Already a variable with this name in this scope");
         }
 
+        Variable variable = addVariable(name.lexeme, VariableState.DECLARE);
+        if (node instanceof Stmt) {
+            variable.declaration = (Stmt) node;
+        }
+        if (node != null) {
+            variable.uses.add(node);
+            record(node, EfficientEnvironment.LOCAL, variable.slot);
+        }
+    }
+
+    private Variable addVariable(String name, VariableState state) {
         Variable variable = new Variable();
-        variable.state = VariableState.DECLARE;
-        variable.slot = scope.size();
+        variable.state = state;
+        variable.function = currentScope;
+        variable.slot = currentScope.nextSlot++;
+        currentScope.slotCount = Math.max(currentScope.slotCount, currentScope.nextSlot);
 
-        scope.put(name.lexeme, variable);
+        scopes.peek().put(name, variable);
+        return variable;
     }
 
     private void define(Token name) {
@@ -358,24 +455,107 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
                     variable.state = VariableState.READ;
                 }
 
-                interpreter.resolve(expr, scopes.size() - 1 - i, variable.slot);
+                if (variable.function == currentScope) {
+                    variable.uses.add(expr);
+                    record(expr, variable.captured ? EfficientEnvironment.CELL : EfficientEnvironment.LOCAL,
+                            variable.slot);
+                } else {
+                    capture(variable);
+                    record(expr, EfficientEnvironment.UPVALUE, upvalue(currentScope, variable));
+                }
                 return;
             }
         }
+
+        referencedGlobals.add(name.lexeme);
+        record(expr, EfficientEnvironment.GLOBAL, globals.indexOf(name.lexeme));
+    }
+
+    private void capture(Variable variable) {
+        if (variable.captured) {
+            return;
+        }
+
+        variable.captured = true;
+        for (Object use : variable.uses) {
+            record(use, EfficientEnvironment.CELL, variable.slot);
+        }
+    }
+
+    /**
+     * Returns the upvalue index of an outer variable in a function, threading it through every
+     * function in between.
+     */
+    private int upvalue(FunctionScope function, Variable variable) {
+        Integer index = function.upvalues.get(variable);
+        if (index == null) {
+            if (function.enclosing != variable.function) {
+                upvalue(function.enclosing, variable);
+            }
+
+            index = function.upvalues.size();
+            function.upvalues.put(variable, index);
+        }
+
+        return index;
+    }
+
+    private void record(Object node, int kind, int slot) {
+        if (node instanceof Expr.Variable) {
+            ((Expr.Variable) node).kind = kind;
+            ((Expr.Variable) node).slot = slot;
+        } else if (node instanceof Expr.Assign) {
+            ((Expr.Assign) node).kind = kind;
+            ((Expr.Assign) node).slot = slot;
+        } else if (node instanceof Expr.This) {
+            ((Expr.This) node).kind = kind;
+            ((Expr.This) node).slot = slot;
+        } else if (node instanceof Expr.Super) {
+            ((Expr.Super) node).kind = kind;
+            ((Expr.Super) node).slot = slot;
+        } else if (node instanceof Stmt.Var) {
+            ((Stmt.Var) node).kind = kind;
+            ((Stmt.Var) node).slot = slot;
+        } else if (node instanceof Stmt.Function) {
+            ((Stmt.Function) node).kind = kind;
+            ((Stmt.Function) node).slot = slot;
+        } else if (node instanceof Stmt.Class) {
+            ((Stmt.Class) node).kind = kind;
+            ((Stmt.Class) node).slot = slot;
+        }
     }
 
     private void resolveFunction(Expr.Function function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        FunctionScope scope = new FunctionScope(currentScope);
+        currentScope = scope;
 
         beginScope();
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            // the receiver lives in slot 0 of the method's own frame
+            addVariable("this", VariableState.READ);
+        }
         for (Token param : function.params) {
-            declare(param);
+            declare(param, null);
             define(param);
         }
         resolve(function.body);
-        endScope();
+        function.cells = endScope();
+        function.slotCount = scope.slotCount;
+
+        if (!scope.upvalues.isEmpty()) {
+            function.captureLocals = new boolean[scope.upvalues.size()];
+            function.captureSlots = new int[scope.upvalues.size()];
+            for (Map.Entry<Variable, Integer> entry : scope.upvalues.entrySet()) {
+                Variable variable = entry.getKey();
+                boolean local = variable.function == scope.enclosing;
+                function.captureLocals[entry.getValue()] = local;
+                function.captureSlots[entry.getValue()] = local ? variable.slot : scope.enclosing.upvalues.get(variable);
+            }
+        }
 
+        currentScope = scope.enclosing;
         currentFunction = enclosingFunction;
     }
 }
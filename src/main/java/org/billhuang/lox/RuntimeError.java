@@ -6,18 +6,22 @@ package org.billhuang.lox;
  * @Author huangshb
  **/
 public class RuntimeError extends RuntimeException{
+    // runtime errors are reported by message and line only, so they skip capturing a stack trace
     final Token token;
     final String tokenName;
+    final int line;
 
     RuntimeError(Token token, String message) {
-        super(message);
+        super(message, null, false, false);
         this.token = token;
         this.tokenName = this.token.lexeme;
+        this.line = token.line;
     }
 
     RuntimeError(String tokenName, String message) {
-        super(message);
+        super(message, null, false, false);
         this.token = null;
         this.tokenName = tokenName;
+        this.line = 0;
     }
 }
@@ -1,6 +1,9 @@
 package org.billhuang.lox;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -12,13 +15,20 @@ import java.util.stream.Collectors;
  * @Author huangshb
  **/
 public class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    // how much a streaming scanner reads at a time
+    private static final int CHUNK = 4096;
+
+    // the whole source, or for a reader the characters read and not yet scanned past
+    private char[] chars;
+    private int limit;
+    private final Reader reader;
+    private final TokenBuffer tokens;
     private int start = 0;
     private int current = 0;
     private int line = 1;
+    private boolean done = false;
 
-    private  static final Map<String, TokenType> keywords;
+    static final Map<String, TokenType> keywords;
     static {
         keywords = new HashMap<>();
         keywords.put("and", TokenType.AND);
@@ -41,18 +51,60 @@ public class Scanner {
     }
 
     Scanner(String source) {
-        this.source = source;
+        this.chars = source.toCharArray();
+        this.limit = chars.length;
+        this.reader = null;
+        this.tokens = new TokenBuffer(chars);
+    }
+
+    /**
+     * A scanner that reads the source a chunk at a time while the Parser asks for tokens, so
+     * neither the whole source nor all of its tokens are ever in memory at once.
+     */
+    Scanner(Reader reader) {
+        this.chars = new char[CHUNK];
+        this.limit = 0;
+        this.reader = reader;
+        this.tokens = new TokenBuffer(this);
     }
 
     List<Token> scanTokens() {
-        while (!isAtEnd()) {
+        return scan().toList();
+    }
+
+    /**
+     * Scans into a buffer of token types and positions, the Parser builds only the tokens it needs.
+     * A scanner on a reader scans nothing yet, its buffer scans on demand.
+     */
+    TokenBuffer scan() {
+        if (reader == null) {
+            while (scanNext()) {
+                // scan everything up front
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Scans until one more token is in the buffer, the last one is EOF. Returns false once EOF is.
+     */
+    boolean scanNext() {
+        if (done) {
+            return false;
+        }
+
+        int size = tokens.size();
+        while (tokens.size() == size) {
             // We are at the beginning of the next lexeme.
             start = current;
-            scanToken();
+            if (isAtEnd()) {
+                addToken(TokenType.EOF);
+                done = true;
+            } else {
+                scanToken();
+            }
         }
-
-        tokens.add(new Token(TokenType.EOF, "", null, line));
-        return tokens;
+        return true;
     }
 
     private void scanToken() {
@@ -141,24 +193,52 @@ public class Scanner {
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= limit && !fill();
     }
 
-    private char advance() {
-        return source.charAt(current++);
+    /**
+     * Reads more of a streamed source, keeping the lexeme being scanned. False at the end of it.
+     */
+    private boolean fill() {
+        if (reader == null) {
+            return false;
+        }
+
+        // the tokens before the lexeme are in the token buffer already
+        System.arraycopy(chars, start, chars, 0, limit - start);
+        limit -= start;
+        current -= start;
+        start = 0;
+        if (limit == chars.length) {
+            // a string or comment longer than the chunk
+            chars = Arrays.copyOf(chars, chars.length * 2);
+        }
+
+        try {
+            int read;
+            do {
+                read = reader.read(chars, limit, chars.length - limit);
+            } while (read == 0);
+            if (read < 0) {
+                return false;
+            }
+            limit += read;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
-    private void addToken(TokenType type) {
-        addToken(type, null);
+    private char advance() {
+        return chars[current++];
     }
 
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+    private void addToken(TokenType type) {
+        tokens.add(type, chars, start, current - start, line);
     }
 
     private boolean match(char expected) {
-        if (isAtEnd() || source.charAt(current) != expected) {
+        if (isAtEnd() || chars[current] != expected) {
             return false;
         }
 
@@ -167,7 +247,7 @@ public class Scanner {
     }
 
     private char peek() {
-        return isAtEnd() ? '\0' : source.charAt(current);
+        return isAtEnd() ? '\0' : chars[current];
     }
 
     private void blockComments() {
@@ -210,11 +290,7 @@ public class Scanner {
 
         // The close ".
         advance();
-
-        // Trim the surrounding quotes.
-        // TODO: why sub start index at "start + 1"
-        String value = source.substring(start + 1, current - 1);
-        addToken(TokenType.STRING, value);
+        addToken(TokenType.STRING);
     }
 
     private boolean isDigit(char c) {
@@ -236,11 +312,16 @@ public class Scanner {
             }
         }
 
-        addToken(TokenType.NUMBER, Double.parseDouble(source.substring(start, current)));
+        addToken(TokenType.NUMBER);
     }
 
     private char peekNext() {
-        return current + 1 >= source.length() ? '\0' : source.charAt(current + 1);
+        while (current + 1 >= limit) {
+            if (!fill()) {
+                return '\0';
+            }
+        }
+        return chars[current + 1];
     }
 
     private void identifier() {
@@ -248,12 +329,74 @@ public class Scanner {
             advance();
         }
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) {
-            type = TokenType.IDENTIFIER;
+        addToken(identifierType());
+    }
+
+    /**
+     * Tells keywords from identifiers by their letters, without cutting the text out of the source.
+     */
+    private TokenType identifierType() {
+        switch (chars[start]) {
+            case 'a':
+                return checkKeyword("and", TokenType.AND);
+            case 'b':
+                return checkKeyword("break", TokenType.BREAK);
+            case 'c':
+                return checkKeyword("class", TokenType.CLASS);
+            case 'e':
+                return checkKeyword("else", TokenType.ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (chars[start + 1]) {
+                        case 'a':
+                            return checkKeyword("false", TokenType.FALSE);
+                        case 'o':
+                            return checkKeyword("for", TokenType.FOR);
+                        case 'u':
+                            return checkKeyword("fun", TokenType.FUN);
+                    }
+                }
+                break;
+            case 'i':
+                return checkKeyword("if", TokenType.IF);
+            case 'n':
+                return checkKeyword("nil", TokenType.NIL);
+            case 'o':
+                return checkKeyword("or", TokenType.OR);
+            case 'p':
+                return checkKeyword("print", TokenType.PRINT);
+            case 'r':
+                return checkKeyword("return", TokenType.RETURN);
+            case 's':
+                return checkKeyword("super", TokenType.SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (chars[start + 1]) {
+                        case 'h':
+                            return checkKeyword("this", TokenType.THIS);
+                        case 'r':
+                            return checkKeyword("true", TokenType.TRUE);
+                    }
+                }
+                break;
+            case 'v':
+                return checkKeyword("var", TokenType.VAR);
+            case 'w':
+                return checkKeyword("while", TokenType.WHILE);
+        }
+        return TokenType.IDENTIFIER;
+    }
+
+    private TokenType checkKeyword(String keyword, TokenType type) {
+        if (current - start != keyword.length()) {
+            return TokenType.IDENTIFIER;
+        }
+        for (int i = 0; i < keyword.length(); i++) {
+            if (chars[start + i] != keyword.charAt(i)) {
+                return TokenType.IDENTIFIER;
+            }
         }
-        addToken(type);
+        return type;
     }
 
     private boolean isAlphaNumeric(char c) {
@@ -268,6 +411,6 @@ public class Scanner {
 
     @Override
     public String toString() {
-        return tokens.stream().map(t -> t.toString()).collect(Collectors.joining("\n"));
+        return tokens.toList().stream().map(t -> t.toString()).collect(Collectors.joining("\n"));
     }
 }
@@ -0,0 +1,98 @@
+package org.billhuang.lox;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @Description Compiled scripts by the SHA-256 of their source, the least recently used one is
+ * dropped once the cache is full. Safe to share between threads.
+ * @Data 2022/3/22 16:45
+ * @Author huangshb
+ **/
+public final class ScriptCache {
+    private final int capacity;
+    private final Map<String, CompiledScript> scripts;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public ScriptCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+
+        this.capacity = capacity;
+        this.scripts = new LinkedHashMap<String, CompiledScript>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> eldest) {
+                if (size() > ScriptCache.this.capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    synchronized CompiledScript get(String hash) {
+        CompiledScript script = scripts.get(hash);
+        if (script == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return script;
+    }
+
+    synchronized void put(String hash, CompiledScript script) {
+        scripts.put(hash, script);
+    }
+
+    public synchronized int size() {
+        return scripts.size();
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    public synchronized double hitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    public synchronized void clear() {
+        scripts.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("script cache: %d/%d scripts, %d hits, %d misses, %d evictions, %.2f%% hit rate",
+                scripts.size(), capacity, hits, misses, evictions, hitRate() * 100);
+    }
+
+    static String hash(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,797 @@
+package org.billhuang.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @Description A compiled script saved to a {@code .loxc} file next to its source, so a later run
+ * of the same source loads the resolved and optimized tree instead of scanning, parsing, resolving
+ * and optimizing it again.
+ *
+ * The file starts with the SHA-256 of the source it was compiled from, then a table of every
+ * string in the tree, the names of the globals in index order, and the tree itself, each node a tag
+ * byte followed by its fields and the slots the Resolver gave it. Numbers other than literals are
+ * varints, strings are indexes into the table. The file is read through a memory mapping, one pass
+ * from front to back.
+ *
+ * @Data 2022/3/23 10:10
+ * @Author huangshb
+ **/
+final class ScriptSnapshot {
+    static final String EXTENSION = ".loxc";
+
+    private static final int MAGIC = 0x4c4f5843;
+    // bump whenever the layout, the AST or the token types change
+    private static final int VERSION = 2;
+
+    private static final byte NULL = 0;
+
+    private static final byte ASSIGN = 1;
+    private static final byte COMMA = 2;
+    private static final byte CONDITIONAL = 3;
+    private static final byte BINARY = 4;
+    private static final byte CALL = 5;
+    private static final byte GET = 6;
+    private static final byte SET = 7;
+    private static final byte THIS = 8;
+    private static final byte SUPER = 9;
+    private static final byte FUNCTION = 10;
+    private static final byte GROUPING = 11;
+    private static final byte LITERAL = 12;
+    private static final byte LOGICAL = 13;
+    private static final byte UNARY = 14;
+    private static final byte VARIABLE = 15;
+
+    private static final byte BLOCK = 1;
+    private static final byte CLASS = 2;
+    private static final byte EXPRESSION = 3;
+    private static final byte FUNCTION_STMT = 4;
+    private static final byte IF = 5;
+    private static final byte WHILE = 6;
+    private static final byte FOR = 7;
+    private static final byte PRINT = 8;
+    private static final byte BREAK = 9;
+    private static final byte RETURN = 10;
+    private static final byte VAR = 11;
+
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte NUMBER = 3;
+    private static final byte STRING = 4;
+    // a number without a fraction that fits in an int, most literals are
+    private static final byte INTEGER = 5;
+
+    private static final long NEGATIVE_ZERO = Double.doubleToRawLongBits(-0.0);
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    private ScriptSnapshot() {
+    }
+
+    /**
+     * The snapshot of {@code foo.lox} is {@code foo.loxc}, any other file gets the extension added.
+     */
+    static Path pathFor(Path source) {
+        String name = source.getFileName().toString();
+        return source.resolveSibling(name.endsWith(".lox") ? name + "c" : name + EXTENSION);
+    }
+
+    /**
+     * Loads a script saved for the source with the given hash, null if there is no snapshot, it
+     * was saved for another source or by another version, or it can't be read.
+     */
+    static CompiledScript read(Path path, String hash) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new Reader(buffer).script(hash);
+        } catch (IOException | RuntimeException | StackOverflowError e) {
+            // a missing, truncated or corrupt snapshot is compiled again and overwritten, garbage
+            // can also look like nodes nested deeper than the stack
+            return null;
+        }
+    }
+
+    /**
+     * Saves a script for the source with the given hash. The file is written next to the snapshot
+     * and moved over it, so a reader never sees half a snapshot.
+     */
+    static void write(Path path, String hash, CompiledScript script) throws IOException {
+        Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                new Writer().script(hash, script, out);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static final class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream tree = new DataOutputStream(bytes);
+
+        /**
+         * The tree is written first to collect the strings, the table goes in front of it.
+         */
+        void script(String hash, CompiledScript script, OutputStream target) throws IOException {
+            Globals globals = script.newGlobals();
+            int[] names = new int[globals.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = string(globals.names[i]);
+            }
+            statements(script.statements);
+
+            DataOutputStream out = new DataOutputStream(target);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(hash.getBytes(StandardCharsets.US_ASCII));
+            varint(out, strings.size());
+            for (String string : strings) {
+                byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+                varint(out, utf8.length);
+                out.write(utf8);
+            }
+            varint(out, names.length);
+            for (int name : names) {
+                varint(out, name);
+            }
+            varint(out, script.slotCount);
+            bytes.writeTo(out);
+            out.flush();
+        }
+
+        private int string(String string) {
+            Integer index = indexes.get(string);
+            if (index == null) {
+                index = strings.size();
+                indexes.put(string, index);
+                strings.add(string);
+            }
+            return index;
+        }
+
+        private void statements(List<? extends Stmt> statements) {
+            write(statements.size());
+            for (Stmt statement : statements) {
+                statement(statement);
+            }
+        }
+
+        private void statement(Stmt stmt) {
+            if (stmt == null) {
+                tag(NULL);
+            } else {
+                stmt.accept(this);
+            }
+        }
+
+        private void expressions(List<Expr> expressions) {
+            write(expressions.size());
+            for (Expr expression : expressions) {
+                expression(expression);
+            }
+        }
+
+        private void expression(Expr expr) {
+            if (expr == null) {
+                tag(NULL);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        private void token(Token token) {
+            if (token == null) {
+                tag(NULL);
+                return;
+            }
+
+            tag((byte) (token.type.ordinal() + 1));
+            write(string(token.lexeme));
+            value(token.literal);
+            write(token.line);
+        }
+
+        private void value(Object value) {
+            if (value == null) {
+                tag(NULL);
+            } else if (value instanceof Boolean) {
+                tag((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                double number = (Double) value;
+                if (number == (int) number && Double.doubleToRawLongBits(number) != NEGATIVE_ZERO) {
+                    tag(INTEGER);
+                    write((int) number);
+                    return;
+                }
+                tag(NUMBER);
+                try {
+                    tree.writeDouble((Double) value);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else if (value instanceof String) {
+                tag(STRING);
+                write(string((String) value));
+            } else {
+                throw new IllegalArgumentException("Can't save a literal of " + value.getClass());
+            }
+        }
+
+        private void variable(int kind, int slot) {
+            write(kind);
+            write(slot);
+        }
+
+        private void ints(int[] values) {
+            if (values == null) {
+                write(-1);
+                return;
+            }
+
+            write(values.length);
+            for (int value : values) {
+                write(value);
+            }
+        }
+
+        private void booleans(boolean[] values) {
+            if (values == null) {
+                write(-1);
+                return;
+            }
+
+            write(values.length);
+            for (boolean value : values) {
+                tag(value ? TRUE : FALSE);
+            }
+        }
+
+        private void tag(byte tag) {
+            try {
+                tree.writeByte(tag);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void write(int value) {
+            try {
+                varint(tree, value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Zigzag encoded, seven bits a byte, so the small numbers that make up most of the tree
+         * take one byte and -1 isn't the largest number there is.
+         */
+        private static void varint(DataOutputStream out, int value) throws IOException {
+            int bits = (value << 1) ^ (value >> 31);
+            while ((bits & ~0x7f) != 0) {
+                out.writeByte((bits & 0x7f) | 0x80);
+                bits >>>= 7;
+            }
+            out.writeByte(bits);
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            tag(ASSIGN);
+            token(expr.name);
+            expression(expr.value);
+            variable(expr.kind, expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitCommaExpr(Expr.Comma expr) {
+            tag(COMMA);
+            expression(expr.left);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitConditionalExpr(Expr.Conditional expr) {
+            tag(CONDITIONAL);
+            expression(expr.cond);
+            expression(expr.thenBranch);
+            expression(expr.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            tag(BINARY);
+            expression(expr.left);
+            token(expr.operator);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            tag(CALL);
+            expression(expr.callee);
+            token(expr.paren);
+            expressions(expr.arguments);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            tag(GET);
+            expression(expr.object);
+            token(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            tag(SET);
+            expression(expr.object);
+            token(expr.name);
+            expression(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            tag(THIS);
+            token(expr.keyword);
+            variable(expr.kind, expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            tag(SUPER);
+            token(expr.keyword);
+            token(expr.method);
+            variable(expr.kind, expr.slot);
+            expression(expr.receiver);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionExpr(Expr.Function expr) {
+            tag(FUNCTION);
+            write(expr.params.size());
+            for (Token param : expr.params) {
+                token(param);
+            }
+            statements(expr.body);
+            write(expr.slotCount);
+            ints(expr.cells);
+            booleans(expr.captureLocals);
+            ints(expr.captureSlots);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            tag(GROUPING);
+            expression(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            tag(LITERAL);
+            value(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            tag(LOGICAL);
+            expression(expr.left);
+            token(expr.operator);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            tag(UNARY);
+            token(expr.operator);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            tag(VARIABLE);
+            token(expr.name);
+            variable(expr.kind, expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            tag(BLOCK);
+            statements(stmt.statements);
+            ints(stmt.cells);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            tag(CLASS);
+            token(stmt.name);
+            expression(stmt.superclass);
+            statements(stmt.methods);
+            statements(stmt.staticMethods);
+            variable(stmt.kind, stmt.slot);
+            write(stmt.superSlot);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            tag(EXPRESSION);
+            expression(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            tag(FUNCTION_STMT);
+            token(stmt.name);
+            expression(stmt.function);
+            variable(stmt.kind, stmt.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            tag(IF);
+            token(stmt.keyword);
+            expression(stmt.condition);
+            statement(stmt.thenBranch);
+            statement(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            tag(WHILE);
+            token(stmt.keyword);
+            expression(stmt.condition);
+            statement(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitForStmt(Stmt.For stmt) {
+            tag(FOR);
+            statement(stmt.initializer);
+            expression(stmt.condition);
+            expression(stmt.increment);
+            statement(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            tag(PRINT);
+            expression(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitBreakStmt(Stmt.Break stmt) {
+            tag(BREAK);
+            token(stmt.name);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            tag(RETURN);
+            token(stmt.keyword);
+            expression(stmt.value);
+            tag(stmt.tailCall ? TRUE : FALSE);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            tag(VAR);
+            token(stmt.name);
+            expression(stmt.initializer);
+            variable(stmt.kind, stmt.slot);
+            return null;
+        }
+    }
+
+    private static final class Reader {
+        private final ByteBuffer buffer;
+        private String[] strings;
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        CompiledScript script(String hash) {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            byte[] saved = new byte[hash.length()];
+            buffer.get(saved);
+            if (!hash.equals(new String(saved, StandardCharsets.US_ASCII))) {
+                return null;
+            }
+
+            strings = new String[length()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] utf8 = new byte[length()];
+                buffer.get(utf8);
+                strings[i] = new String(utf8, StandardCharsets.UTF_8);
+            }
+
+            // the natives must still get the indexes they had when the script was resolved
+            Globals globals = Globals.withNatives();
+            int count = length();
+            for (int i = 0; i < count; i++) {
+                if (globals.indexOf(string()) != i) {
+                    return null;
+                }
+            }
+
+            int slotCount = integer();
+            List<Stmt> statements = statements();
+            if (buffer.hasRemaining()) {
+                return null;
+            }
+            return new CompiledScript(statements, slotCount, globals);
+        }
+
+        private int integer() {
+            int bits = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buffer.get();
+                bits |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return (bits >>> 1) ^ -(bits & 1);
+                }
+            }
+        }
+
+        /**
+         * A count of things that follow, each takes at least a byte, so a corrupt count fails here
+         * instead of allocating an array it can't fill.
+         */
+        private int length() {
+            return check(integer());
+        }
+
+        private int check(int length) {
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IllegalStateException("Bad length " + length);
+            }
+            return length;
+        }
+
+        private String string() {
+            return strings[integer()];
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T extends Stmt> List<T> statements() {
+            int size = length();
+            List<T> statements = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                statements.add((T) statement());
+            }
+            return statements;
+        }
+
+        private List<Expr> expressions() {
+            int size = length();
+            List<Expr> expressions = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                expressions.add(expression());
+            }
+            return expressions;
+        }
+
+        private Token token() {
+            int type = buffer.get();
+            if (type == NULL) {
+                return null;
+            }
+            return new Token(TOKEN_TYPES[type - 1], string(), value(), integer());
+        }
+
+        private Object value() {
+            byte tag = buffer.get();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case TRUE:
+                    return true;
+                case FALSE:
+                    return false;
+                case NUMBER:
+                    return buffer.getDouble();
+                case STRING:
+                    return string();
+                case INTEGER:
+                    return (double) integer();
+                default:
+                    throw new IllegalStateException("Unknown literal tag " + tag);
+            }
+        }
+
+        private boolean bool() {
+            return buffer.get() == TRUE;
+        }
+
+        private int[] ints() {
+            int length = integer();
+            if (length == -1) {
+                return null;
+            }
+            check(length);
+
+            int[] values = new int[length];
+            for (int i = 0; i < length; i++) {
+                values[i] = integer();
+            }
+            return values;
+        }
+
+        private boolean[] booleans() {
+            int length = integer();
+            if (length == -1) {
+                return null;
+            }
+            check(length);
+
+            boolean[] values = new boolean[length];
+            for (int i = 0; i < length; i++) {
+                values[i] = bool();
+            }
+            return values;
+        }
+
+        private Expr expression() {
+            byte tag = buffer.get();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case ASSIGN: {
+                    Expr.Assign expr = new Expr.Assign(token(), expression());
+                    expr.kind = integer();
+                    expr.slot = integer();
+                    return expr;
+                }
+                case COMMA:
+                    return new Expr.Comma(expression(), expression());
+                case CONDITIONAL:
+                    return new Expr.Conditional(expression(), expression(), expression());
+                case BINARY:
+                    return new Expr.Binary(expression(), token(), expression());
+                case CALL:
+                    return new Expr.Call(expression(), token(), expressions());
+                case GET:
+                    return new Expr.Get(expression(), token());
+                case SET:
+                    return new Expr.Set(expression(), token(), expression());
+                case THIS: {
+                    Expr.This expr = new Expr.This(token());
+                    expr.kind = integer();
+                    expr.slot = integer();
+                    return expr;
+                }
+                case SUPER: {
+                    Expr.Super expr = new Expr.Super(token(), token());
+                    expr.kind = integer();
+                    expr.slot = integer();
+                    expr.receiver = (Expr.This) expression();
+                    return expr;
+                }
+                case FUNCTION: {
+                    int arity = length();
+                    List<Token> params = new ArrayList<>(arity);
+                    for (int i = 0; i < arity; i++) {
+                        params.add(token());
+                    }
+                    Expr.Function expr = new Expr.Function(params, statements());
+                    expr.slotCount = integer();
+                    expr.cells = ints();
+                    expr.captureLocals = booleans();
+                    expr.captureSlots = ints();
+                    return expr;
+                }
+                case GROUPING:
+                    return new Expr.Grouping(expression());
+                case LITERAL:
+                    return new Expr.Literal(value());
+                case LOGICAL:
+                    return new Expr.Logical(expression(), token(), expression());
+                case UNARY:
+                    return new Expr.Unary(token(), expression());
+                case VARIABLE: {
+                    Expr.Variable expr = new Expr.Variable(token());
+                    expr.kind = integer();
+                    expr.slot = integer();
+                    return expr;
+                }
+                default:
+                    throw new IllegalStateException("Unknown expression tag " + tag);
+            }
+        }
+
+        private Stmt statement() {
+            byte tag = buffer.get();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case BLOCK: {
+                    Stmt.Block stmt = new Stmt.Block(statements());
+                    stmt.cells = ints();
+                    return stmt;
+                }
+                case CLASS: {
+                    Stmt.Class stmt = new Stmt.Class(token(), (Expr.Variable) expression(),
+                            statements(), statements());
+                    stmt.kind = integer();
+                    stmt.slot = integer();
+                    stmt.superSlot = integer();
+                    return stmt;
+                }
+                case EXPRESSION:
+                    return new Stmt.Expression(expression());
+                case FUNCTION_STMT: {
+                    Stmt.Function stmt = new Stmt.Function(token(), (Expr.Function) expression());
+                    stmt.kind = integer();
+                    stmt.slot = integer();
+                    return stmt;
+                }
+                case IF:
+                    return new Stmt.If(token(), expression(), statement(), statement());
+                case WHILE:
+                    return new Stmt.While(token(), expression(), statement());
+                case FOR:
+                    return new Stmt.For(statement(), expression(), expression(), statement());
+                case PRINT:
+                    return new Stmt.Print(expression());
+                case BREAK:
+                    return new Stmt.Break(token());
+                case RETURN: {
+                    Stmt.Return stmt = new Stmt.Return(token(), expression());
+                    stmt.tailCall = bool();
+                    return stmt;
+                }
+                case VAR: {
+                    Stmt.Var stmt = new Stmt.Var(token(), expression());
+                    stmt.kind = integer();
+                    stmt.slot = integer();
+                    return stmt;
+                }
+                default:
+                    throw new IllegalStateException("Unknown statement tag " + tag);
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.billhuang.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @Description Hidden class describing the field layout of a {@link LoxInstance}.
+ *
+ * Instances that had the same fields added in the same order share one shape, and keep their
+ * values in a plain array at the offsets the shape hands out. Adding a field moves the instance
+ * along a transition to a child shape, which is created the first time any instance takes it. A
+ * shape looks its fields up in the names array it shares with its parent, a chain only copies the
+ * array where it branches.
+ *
+ * @Data 2022/3/17 10:32
+ * @Author huangshb
+ **/
+final class Shape {
+    // the field names by offset, one array shared with the ancestors and the first child
+    private final String[] names;
+    // created on the first transition, most shapes are leaves
+    private Map<String, Shape> transitions;
+    final int size;
+
+    Shape() {
+        this.names = new String[4];
+        this.size = 0;
+    }
+
+    private Shape(Shape parent, String name) {
+        String[] names = parent.names;
+        if (parent.size == names.length || names[parent.size] != null) {
+            // the array is full, or another child took the next slot
+            names = Arrays.copyOf(names, Math.max(4, parent.size * 2));
+            Arrays.fill(names, parent.size, names.length, null);
+        }
+        names[parent.size] = name;
+        this.names = names;
+        this.size = parent.size + 1;
+    }
+
+    /**
+     * Returns the offset of a field, or -1 if instances of this shape don't have it.
+     */
+    int offsetOf(String name) {
+        for (int i = 0; i < size; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    Shape withField(String name) {
+        if (transitions == null) {
+            transitions = new HashMap<>();
+        }
+        Shape next = transitions.get(name);
+        if (next == null) {
+            next = new Shape(this, name);
+            transitions.put(name, next);
+        }
+
+        return next;
+    }
+}
@@ -27,6 +27,7 @@ abstract class Stmt {
         }
 
         final List<Stmt> statements;
+        int[] cells = null;
     }
     static class Class extends Stmt {
         Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt.Function> staticMethods) {
@@ -45,6 +46,9 @@ abstract class Stmt {
         final Expr.Variable superclass;
         final List<Stmt.Function> methods;
         final List<Stmt.Function> staticMethods;
+        int kind = EfficientEnvironment.GLOBAL;
+        int slot = 0;
+        int superSlot = 0;
     }
     static class Expression extends Stmt {
         Expression(Expr expression) {
@@ -71,9 +75,12 @@ abstract class Stmt {
 
         final Token name;
         final Expr.Function function;
+        int kind = EfficientEnvironment.GLOBAL;
+        int slot = 0;
     }
     static class If extends Stmt {
-        If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
+        If(Token keyword, Expr condition, Stmt thenBranch, Stmt elseBranch) {
+            this.keyword = keyword;
             this.condition = condition;
             this.thenBranch = thenBranch;
             this.elseBranch = elseBranch;
@@ -84,12 +91,14 @@ abstract class Stmt {
             return visitor.visitIfStmt(this);
         }
 
+        final Token keyword;
         final Expr condition;
         final Stmt thenBranch;
         final Stmt elseBranch;
     }
     static class While extends Stmt {
-        While(Expr condition, Stmt body) {
+        While(Token keyword, Expr condition, Stmt body) {
+            this.keyword = keyword;
             this.condition = condition;
             this.body = body;
         }
@@ -99,6 +108,7 @@ abstract class Stmt {
             return visitor.visitWhileStmt(this);
         }
 
+        final Token keyword;
         final Expr condition;
         final Stmt body;
     }
@@ -157,6 +167,7 @@ abstract class Stmt {
 
         final Token keyword;
         final Expr value;
+        boolean tailCall = false;
     }
     static class Var extends Stmt {
         Var(Token name, Expr initializer) {
@@ -171,6 +182,8 @@ abstract class Stmt {
 
         final Token name;
         final Expr initializer;
+        int kind = EfficientEnvironment.GLOBAL;
+        int slot = 0;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,240 @@
+package org.billhuang.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @Description Executable form of a statement, see {@link ExprNode}.
+ *
+ * Executing a statement reports how it finished, a return leaves its value in the frame.
+ *
+ * @Data 2022/3/21 09:30
+ * @Author huangshb
+ **/
+abstract class StmtNode {
+    abstract Interpreter.Completion execute(EfficientEnvironment frame);
+
+    static final class Expression extends StmtNode {
+        final ExprNode expression;
+
+        Expression(ExprNode expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        Interpreter.Completion execute(EfficientEnvironment frame) {
+            expression.executeVoid(frame);
+            return Interpreter.Completion.NORMAL;
+        }
+    }
+
+    static final class Print extends StmtNode {
+        final ExprNode expression;
+
+        Print(ExprNode expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        Interpreter.Completion execute(EfficientEnvironment frame) {
+            frame.interpreter.output.println(Interpreter.stringify(expression.execute(frame)));
+            return Interpreter.Completion.NORMAL;
+        }
+    }
+
+    static final class Block extends StmtNode {
+        final int[] cells;
+        final StmtNode[] statements;
+
+        Block(int[] cells, StmtNode[] statements) {
+            this.cells = cells;
+            this.statements = statements;
+        }
+
+        @Override
+        Interpreter.Completion execute(EfficientEnvironment frame) {
+            frame.box(cells);
+            for (StmtNode statement : statements) {
+                Interpreter.Completion completion = statement.execute(frame);
+                if (completion != Interpreter.Completion.NORMAL) {
+                    return completion;
+                }
+            }
+            return Interpreter.Completion.NORMAL;
+        }
+    }
+
+    static final class If extends StmtNode {
+        final ExprNode condition;
+        final StmtNode thenBranch;
+        final StmtNode elseBranch;
+
+        If(ExprNode condition, StmtNode thenBranch, StmtNode elseBranch) {
+            this.condition = condition;
+            this.thenBranch = thenBranch;
+            this.elseBranch = elseBranch;
+        }
+
+        @Override
+        Interpreter.Completion execute(EfficientEnvironment frame) {
+            if (Interpreter.isTruthy(condition.execute(frame))) {
+                return thenBranch.execute(frame);
+            } else if (elseBranch != null) {
+                return elseBranch.execute(frame);
+            }
+            return Interpreter.Completion.NORMAL;
+        }
+    }
+
+    static final class While extends StmtNode {
+        final ExprNode condition;
+        final StmtNode body;
+
+        While(ExprNode condition, StmtNode body) {
+            this.condition = condition;
+            this.body = body;
+        }
+
+        @Override
+        Interpreter.Completion execute(EfficientEnvironment frame) {
+            while (Interpreter.isTruthy(condition.execute(frame))) {
+                Interpreter.Completion completion = body.execute(frame);
+                if (completion == Interpreter.Completion.BREAK) {
+                    break;
+                } else if (completion != Interpreter.Completion.NORMAL) {
+                    return completion;
+                }
+            }
+            return Interpreter.Completion.NORMAL;
+        }
+    }
+
+    static final class For extends StmtNode {
+        final StmtNode initializer;
+        final ExprNode condition;
+        final ExprNode increment;
+        final StmtNode body;
+
+        For(StmtNode initializer, ExprNode condition, ExprNode increment, StmtNode body) {
+            this.initializer = initializer;
+            this.condition = condition;
+            this.increment = increment;
+            this.body = body;
+        }
+
+        @Override
+        Interpreter.Completion execute(EfficientEnvironment frame) {
+            if (initializer != null) {
+                initializer.execute(frame);
+            }
+            while (condition == null || Interpreter.isTruthy(condition.execute(frame))) {
+                Interpreter.Completion completion = body.execute(frame);
+                if (completion == Interpreter.Completion.BREAK) {
+                    break;
+                } else if (completion != Interpreter.Completion.NORMAL) {
+                    return completion;
+                }
+                if (increment != null) {
+                    increment.executeVoid(frame);
+                }
+            }
+            return Interpreter.Completion.NORMAL;
+        }
+    }
+
+    static final class Break extends StmtNode {
+        static final Break INSTANCE = new Break();
+
+        @Override
+        Interpreter.Completion execute(EfficientEnvironment frame) {
+            return Interpreter.Completion.BREAK;
+        }
+    }
+
+    static final class Return extends StmtNode {
+        final ExprNode value;
+
+        Return(ExprNode value) {
+            this.value = value;
+        }
+
+        @Override
+        Interpreter.Completion execute(EfficientEnvironment frame) {
+            frame.returnValue = value == null ? null : value.execute(frame);
+            return Interpreter.Completion.RETURN;
+        }
+    }
+
+    /**
+     * A return of a call. When the call is left pending by {@link LoxFunction#tailCall}, for the
+     * loop in {@link LoxFunction#execute} to make, it finishes with
+     * {@link Interpreter.Completion#TAIL_CALL} instead of a value.
+     */
+    static final class TailCall extends StmtNode {
+        final ExprNode.AbstractCall call;
+
+        TailCall(ExprNode.AbstractCall call) {
+            this.call = call;
+        }
+
+        @Override
+        Interpreter.Completion execute(EfficientEnvironment frame) {
+            Object value = call.execute(frame);
+            if (value == LoxFunction.TAIL_CALL) {
+                return Interpreter.Completion.TAIL_CALL;
+            }
+
+            frame.returnValue = value;
+            return Interpreter.Completion.RETURN;
+        }
+    }
+
+    static final class Class extends StmtNode {
+        final String name;
+        final int kind;
+        final int slot;
+        final ExprNode superclass;
+        final Token superclassName;
+        final int superSlot;
+        final ExprNode.Closure[] methods;
+        final ExprNode.Closure[] staticMethods;
+
+        Class(String name, int kind, int slot, ExprNode superclass, Token superclassName, int superSlot,
+              ExprNode.Closure[] methods, ExprNode.Closure[] staticMethods) {
+            this.name = name;
+            this.kind = kind;
+            this.slot = slot;
+            this.superclass = superclass;
+            this.superclassName = superclassName;
+            this.superSlot = superSlot;
+            this.methods = methods;
+            this.staticMethods = staticMethods;
+        }
+
+        @Override
+        Interpreter.Completion execute(EfficientEnvironment frame) {
+            Object parent = null;
+            if (superclass != null) {
+                parent = superclass.execute(frame);
+                if (!(parent instanceof LoxClass)) {
+                    throw new RuntimeError(superclassName, "Superclass must be a class.");
+                }
+
+                frame.slots[superSlot] = new Cell(parent);
+            }
+
+            Map<String, LoxFunction> functions = new HashMap<>();
+            for (ExprNode.Closure method : methods) {
+                functions.put(method.name, method.create(frame, "init".equals(method.name), true));
+            }
+
+            LoxClass loxClass = new LoxClass(name, (LoxClass) parent, functions);
+            for (ExprNode.Closure method : staticMethods) {
+                loxClass.set(method.name, method.create(frame, false, false));
+            }
+
+            frame.define(kind, slot, loxClass);
+            return Interpreter.Completion.NORMAL;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package org.billhuang.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @Description The tokens of a source, kept as parallel arrays of type, offset, length and line
+ * instead of one {@link Token} object each.
+ *
+ * The Parser only looks at the type of most tokens, a Token is built the first time it asks for
+ * the token itself, e.g. for the name of a variable or to report an error. Punctuation and keywords
+ * share one lexeme string per type, identifiers, strings and numbers are cut from the source and
+ * parsed only then, and the same text always gives the same string and literal.
+ *
+ * A buffer of a streaming {@link Scanner} is a window of the last {@link #WINDOW} tokens, which
+ * the scanner fills as the Parser looks ahead. The Parser looks at most three tokens ahead and one
+ * back. Their text is cut as they are scanned, the scanner doesn't keep the source around. Nothing
+ * is interned, so a window holds on to no more than its own tokens however long the source is.
+ *
+ * @Data 2022/3/23 11:20
+ * @Author huangshb
+ **/
+class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+    // the lexeme of every token type that has only one, null for identifiers, strings and numbers
+    private static final String[] LEXEMES = new String[TYPES.length];
+    static {
+        String[] punctuation = {"(", ")", "{", "}", ",", ".", "-", "+", ";", "/", "*", "?", ":",
+                "!", "!=", "=", "==", ">", ">=", "<", "<="};
+        for (int i = 0; i < punctuation.length; i++) {
+            LEXEMES[i] = punctuation[i];
+        }
+        for (Map.Entry<String, TokenType> keyword : Scanner.keywords.entrySet()) {
+            LEXEMES[keyword.getValue().ordinal()] = keyword.getKey();
+        }
+        LEXEMES[TokenType.EOF.ordinal()] = "";
+    }
+
+    static final int WINDOW = 8;
+
+    // the whole source, null when streamed
+    private final char[] source;
+    // scans more tokens when asked for one past the last, null if all are scanned up front
+    private final Scanner scanner;
+    // -1 to index the arrays directly, WINDOW - 1 to wrap around the window
+    private final int mask;
+    private int[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    // only for a window, the text of identifiers, strings and numbers
+    private String[] texts;
+    private int size = 0;
+
+    // built on demand
+    private Token[] tokens;
+    // only for the whole source
+    private final Map<String, String> strings = new HashMap<>();
+    private final Map<String, Double> numbers = new HashMap<>();
+
+    TokenBuffer(char[] source) {
+        // code has a token every few characters, so this mostly saves growing the arrays
+        this(source, null, -1, source == null ? 64 : Math.max(64, source.length / 4));
+    }
+
+    /**
+     * A window the scanner fills as tokens are asked for.
+     */
+    TokenBuffer(Scanner scanner) {
+        this(null, scanner, WINDOW - 1, WINDOW);
+        texts = new String[WINDOW];
+    }
+
+    private TokenBuffer(char[] source, Scanner scanner, int mask, int capacity) {
+        this.source = source;
+        this.scanner = scanner;
+        this.mask = mask;
+        types = new int[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        lines = new int[capacity];
+        tokens = new Token[capacity];
+    }
+
+    /**
+     * A buffer holding tokens that were already built, for callers that have a list.
+     */
+    static TokenBuffer of(List<Token> tokens) {
+        TokenBuffer buffer = new TokenBuffer((char[]) null);
+        for (Token token : tokens) {
+            buffer.add(token.type, null, 0, 0, token.line);
+            buffer.tokens[buffer.size - 1] = token;
+        }
+        return buffer;
+    }
+
+    /**
+     * Adds a token found at the given range of the scanner's characters.
+     */
+    void add(TokenType type, char[] chars, int start, int length, int line) {
+        int slot = size & mask;
+        if (mask == -1 && size == types.length) {
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            tokens = Arrays.copyOf(tokens, capacity);
+        }
+
+        types[slot] = type.ordinal();
+        starts[slot] = start;
+        lengths[slot] = length;
+        lines[slot] = line;
+        tokens[slot] = null;
+        if (texts != null) {
+            // the scanner moves on, the text has to be taken now
+            texts[slot] = LEXEMES[type.ordinal()] == null ? new String(chars, start, length) : null;
+        }
+        size++;
+    }
+
+    /**
+     * How many tokens have been scanned so far.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * The type of a token, EOF for any index past the end.
+     */
+    TokenType type(int index) {
+        return available(index) ? TYPES[types[slot(index)]] : TokenType.EOF;
+    }
+
+    int line(int index) {
+        available(index);
+        return lines[slot(index)];
+    }
+
+    Token token(int index) {
+        available(index);
+        int slot = slot(index);
+        Token token = tokens[slot];
+        if (token == null) {
+            token = build(slot);
+            tokens[slot] = token;
+        }
+        return token;
+    }
+
+    /**
+     * Every token up to and including EOF.
+     */
+    List<Token> toList() {
+        List<Token> list = new ArrayList<>();
+        for (int i = 0; ; i++) {
+            list.add(token(i));
+            if (type(i) == TokenType.EOF) {
+                return list;
+            }
+        }
+    }
+
+    /**
+     * Scans up to the given token if there is a scanner, false if the source ends before it.
+     */
+    private boolean available(int index) {
+        while (index >= size) {
+            if (scanner == null || !scanner.scanNext()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Where a token is in the arrays. A window has overwritten the slots of old tokens, asking for
+     * one of them is a bug in the caller.
+     */
+    private int slot(int index) {
+        if (mask != -1 && index <= size - WINDOW) {
+            throw new IllegalStateException("Token " + index + " has left the window, " + size + " are scanned");
+        }
+        return index & mask;
+    }
+
+    private Token build(int slot) {
+        TokenType type = TYPES[types[slot]];
+        String lexeme = LEXEMES[types[slot]];
+        Object literal = null;
+        if (lexeme == null && texts != null) {
+            lexeme = texts[slot];
+            if (type == TokenType.STRING) {
+                literal = lexeme.substring(1, lexeme.length() - 1);
+            } else if (type == TokenType.NUMBER) {
+                literal = Double.valueOf(lexeme);
+            }
+        } else if (lexeme == null) {
+            lexeme = intern(new String(source, starts[slot], lengths[slot]));
+            if (type == TokenType.STRING) {
+                // without the quotes
+                literal = intern(lexeme.substring(1, lexeme.length() - 1));
+            } else if (type == TokenType.NUMBER) {
+                literal = numbers.computeIfAbsent(lexeme, Double::valueOf);
+            }
+        }
+        return new Token(type, lexeme, literal, lines[slot]);
+    }
+
+    private String intern(String text) {
+        String interned = strings.putIfAbsent(text, text);
+        return interned == null ? text : interned;
+    }
+}
@@ -18,36 +18,44 @@ public class GenerateAst {
         }
 
         String outputDir = args[0];
+        // kind and slot are filled in by the Resolver, see EfficientEnvironment for what the kinds mean.
+        // slotCount is the size of a function's frame, cells are the slots boxed on entry because a closure
+        // captures them and captureLocals/captureSlots say where each of a closure's upvalues comes from.
+        // receiver is the resolved 'this' of a super expression.
+        // tailCall marks a return whose value is a call, the call can replace the returning function's frame.
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign       : Token name, Expr value",
+                "Assign       : Token name, Expr value : int kind = EfficientEnvironment.GLOBAL, int slot = 0",
                 "Comma        : Expr left, Expr right",
                 "Conditional  : Expr cond, Expr thenBranch, Expr elseBranch",
                 "Binary       : Expr left, Token operator, Expr right",
                 "Call         : Expr callee, Token paren, List<Expr> arguments",
                 "Get          : Expr object, Token name",
                 "Set          : Expr object, Token name, Expr value",
-                "This         : Token keyword",
-                "Super        : Token keyword, Token method",
-                "Function     : List<Token> params, List<Stmt> body",
+                "This         : Token keyword : int kind = EfficientEnvironment.GLOBAL, int slot = 0",
+                "Super        : Token keyword, Token method"
+                        + " : int kind = EfficientEnvironment.GLOBAL, int slot = 0, Expr.This receiver = null",
+                "Function     : List<Token> params, List<Stmt> body"
+                        + " : int slotCount = 0, int[] cells = null, boolean[] captureLocals = null, int[] captureSlots = null",
                 "Grouping     : Expr expression",
                 "Literal      : Object value",
                 "Logical      : Expr left, Token operator, Expr right",
                 "Unary        : Token operator, Expr right",
-                "Variable     : Token name"
+                "Variable     : Token name : int kind = EfficientEnvironment.GLOBAL, int slot = 0"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block        : List<Stmt> statements",
-                "Class        : Token name, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt.Function> staticMethods",
+                "Block        : List<Stmt> statements : int[] cells = null",
+                "Class        : Token name, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt.Function> staticMethods"
+                        + " : int kind = EfficientEnvironment.GLOBAL, int slot = 0, int superSlot = 0",
                 "Expression   : Expr expression",
-                "Function     : Token name, Expr.Function function",
-                "If           : Expr condition, Stmt thenBranch, Stmt elseBranch",
-                "While        : Expr condition, Stmt body",
+                "Function     : Token name, Expr.Function function : int kind = EfficientEnvironment.GLOBAL, int slot = 0",
+                "If           : Token keyword, Expr condition, Stmt thenBranch, Stmt elseBranch",
+                "While        : Token keyword, Expr condition, Stmt body",
                 "For          : Stmt initializer, Expr condition, Expr increment, Stmt body",
                 "Print        : Expr expression",
                 "Break        : Token name",
-                "Return       : Token keyword, Expr value",
-                "Var          : Token name, Expr initializer"
+                "Return       : Token keyword, Expr value : boolean tailCall = false",
+                "Var          : Token name, Expr initializer : int kind = EfficientEnvironment.GLOBAL, int slot = 0"
         ));
     }
 
@@ -68,8 +76,10 @@ public class GenerateAst {
             String[] items = type.split(":");
             String className = items[0].trim();
             String fields = items[1].trim();
+            // Optional third part: mutable fields filled in by later passes, e.g. the Resolver.
+            String attributes = items.length > 2 ? items[2].trim() : null;
 
-            defineType(writer, baseName, className, fields);
+            defineType(writer, baseName, className, fields, attributes);
         }
 
         // The base accept() method.
@@ -91,7 +101,8 @@ public class GenerateAst {
         writer.println("    }");
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList,
+                                   String attributeList) {
         writer.println(String.format("    static class %s extends %s {", className, baseName ));
 
         // Constructor.
@@ -117,6 +128,11 @@ public class GenerateAst {
         for (String field: fields) {
             writer.println(String.format("        final %s;", field));
         }
+        if (attributeList != null) {
+            for (String attribute : attributeList.split(", ")) {
+                writer.println(String.format("        %s;", attribute));
+            }
+        }
 
         writer.println("    }");
     }
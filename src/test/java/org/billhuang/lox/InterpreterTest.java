@@ -0,0 +1,69 @@
+package org.billhuang.lox;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * @Description
+ * @Data 2022/3/26 15:05
+ * @Author huangshb
+ **/
+public class InterpreterTest {
+    @Test
+    public void tailCallTest() {
+        // far deeper than the interpreter could go if every call kept its frame
+        Assert.assertEquals(LoxRunner.lines("200000", "false", "<class B> instance."),
+                LoxRunner.run("fun count(n, acc) { if (n == 0) return acc; return count(n - 1, acc + 1); }"
+                        + " print count(200000, 0); fun even(n) { if (n == 0) return true; return odd(n - 1); }"
+                        + " fun odd(n) { if (n == 0) return false; return even(n - 1); } print even(100001);"
+                        + " class A { down(n) { if (n == 0) return this; return this.down(n - 1); } }"
+                        + " class B < A { down(n) { while (true) { return super.down(n); } } }"
+                        + " print B().down(100000);"));
+        // closures keep what they captured, and calls that can't replace the frame still return a value
+        Assert.assertEquals(LoxRunner.lines("1", "2", "5", "Expected 1 arguments but got 2. \n[line 1 ]"),
+                LoxRunner.run("fun apply(f, n) { if (n == 0) return f(); var m = n; fun g() { return m; }"
+                        + " return apply(g, n - 1); } print apply(nil, 3); class P { init(n) { this.n = n; } }"
+                        + " fun make(n) { return P(n); } print make(2).n; fun re(p) { return p.init(5); }"
+                        + " print re(P(1)).n; fun bad() { return make(1, 2); } print bad();"));
+    }
+
+    @Test
+    public void trampolineTest() {
+        // each pending call brings its own receiver, the loop has to switch to it
+        Assert.assertEquals(LoxRunner.lines("100000"),
+                LoxRunner.run("class Node { init(next) { this.next = next; }"
+                        + " size(n) { if (this.next == nil) return n + 1; return this.next.size(n + 1); } }"
+                        + " var list = nil; for (var i = 0; i < 100000; i = i + 1) { list = Node(list); }"
+                        + " print list.size(0);"));
+        // a super call and the override it calls back alternate in the same loop, on the same receiver
+        Assert.assertEquals(LoxRunner.lines("b"),
+                LoxRunner.run("class A { down(n) { if (n == 0) return this.tag; return this.down(n - 1); } }"
+                        + " class B < A { init() { this.tag = \"b\"; } down(n) { return super.down(n); } }"
+                        + " print B().down(100000);"));
+        // an initializer reached at the end of a chain still returns its receiver
+        Assert.assertEquals(LoxRunner.lines("7", "true"),
+                LoxRunner.run("class P { init(n) { this.n = n; } } fun again(p, n) { if (n == 0) return p.init(7);"
+                        + " return again(p, n - 1); } print again(P(1), 100000).n;"
+                        + " fun native(n) { if (n == 0) return clock() >= 0; return native(n - 1); } print native(100000);"));
+    }
+
+    @Test
+    public void tailCallReleaseTest() {
+        // the trampoline takes the pending call, the interpreter keeps nothing of it afterwards
+        Interpreter interpreter = new Interpreter();
+        interpreter.output = LoxOutput.memory();
+        String source = "class A { m(n) { if (n == 0) return this; return this.m(n - 1); } }"
+                + " fun f(n) { if (n == 0) return A().m(3); return f(n - 1); } print f(3);";
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+        Resolver resolver = new Resolver(interpreter.globals);
+        resolver.resolve(statements);
+        interpreter.interpret(statements, resolver.slotCount());
+
+        Assert.assertEquals(LoxRunner.lines("<class A> instance."), interpreter.output.contents());
+        Assert.assertNull(interpreter.tailFunction);
+        Assert.assertNull(interpreter.tailReceiver);
+        Assert.assertNull(interpreter.tailFrame);
+    }
+}
@@ -0,0 +1,230 @@
+package org.billhuang.lox;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @Description
+ * @Data 2022/3/22 15:20
+ * @Author huangshb
+ **/
+public class LoxEngineTest {
+    private static final String NL = System.lineSeparator();
+
+    @Test
+    public void sessionTest() throws IOException {
+        LoxOutput output = LoxOutput.memory();
+        LoxOutput errors = LoxOutput.memory();
+        LoxSession session = new LoxEngine().newSession(output, errors);
+        Assert.assertTrue(session.run("var a = 1;"));
+        Assert.assertTrue(session.runRepl("a + 1"));
+        Assert.assertFalse(session.run("print a; print b;"));
+        Assert.assertTrue(session.hadRuntimeError());
+        Assert.assertEquals("2" + NL + "1" + NL, output.contents());
+        Assert.assertEquals("Undefined variable 'b'. \n[line 1 ]" + NL, errors.contents());
+
+        // a reader is parsed as it is read
+        Assert.assertTrue(session.run(new StringReader("var b = a + 1;\nfor (var i = 0; i < 2; i = i + 1) print b + i;")));
+        Assert.assertEquals("2" + NL + "1" + NL + "2" + NL + "3" + NL, output.contents());
+
+        // globals belong to the session
+        LoxOutput other = LoxOutput.memory();
+        Assert.assertFalse(new LoxEngine().newSession(other, other).run("print a;"));
+        Assert.assertFalse(session.run("var;"));
+        Assert.assertTrue(session.hadError());
+    }
+
+    @Test
+    public void replResolveErrorTest() {
+        // an expression that failed to resolve is not run
+        LoxOutput output = LoxOutput.memory();
+        LoxSession session = new LoxEngine().newSession(output, output);
+        Assert.assertFalse(session.runRepl("this"));
+        Assert.assertEquals("[line 1 ], Error at 'this': Can't use 'this' outside of a class." + NL,
+                output.contents());
+    }
+
+    @Test
+    public void laterRunTest() {
+        // a global function the first run never calls is still there for the next one
+        LoxOutput output = LoxOutput.memory();
+        LoxSession session = new LoxEngine().newSession(output, output);
+        Assert.assertTrue(session.run("fun helper() { return \"helped\"; } var unused = 1;"));
+        Assert.assertTrue(session.run("print helper();"));
+        Assert.assertEquals("helped" + NL, output.contents());
+    }
+
+    @Test
+    public void compiledScriptTest() {
+        LoxEngine engine = new LoxEngine(false, 1);
+        LoxOutput output = LoxOutput.memory();
+        LoxSession session = engine.newSession(output, output);
+        String source = "var n; if (n == nil) n = 0; n = n + 1; print n + x;";
+        CompiledScript script = session.compile(source);
+        Assert.assertSame(script, session.compile(source));
+        Assert.assertNull(session.compile("print;"));
+
+        // every run starts from fresh globals, the session's own globals aren't used
+        session.run("var x = 1;");
+        Assert.assertFalse(session.run(script));
+        session.run("print x;");
+        Assert.assertTrue(session.run(session.compile("var x = 2; print x;")));
+        Assert.assertEquals("[line 1 ], Error at ';': Expect expression." + NL
+                + "Undefined variable 'x'. \n[line 1 ]" + NL + "1" + NL + "2" + NL, output.contents());
+
+        // print; wasn't cached, the last script pushed the first one out
+        ScriptCache cache = engine.cache();
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(1, cache.hits());
+        Assert.assertEquals(3, cache.misses());
+        Assert.assertEquals(1, cache.evictions());
+        Assert.assertEquals(0.25, cache.hitRate(), 1e-9);
+        Assert.assertNotSame(script, session.compile(source));
+    }
+
+    @Test
+    public void compiledNodesTest() {
+        LoxOutput output = LoxOutput.memory();
+        LoxSession session = new LoxEngine().newSession(output, output);
+        CompiledScript script = session.compile("var n; if (n == nil) n = 0; n = n + 1;"
+                + " class P { init(x) { this.x = x; } } var p = P(n); print p.x;");
+        CompiledScript.Nodes nodes = script.acquire();
+        script.release(nodes);
+
+        // a finished run leaves its nodes to the next one, which starts on fresh globals
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(session.run(script));
+        }
+        Assert.assertEquals("1" + NL + "1" + NL + "1" + NL, output.contents());
+        Assert.assertSame(nodes, script.acquire());
+
+        // while those are taken another run compiles its own
+        Assert.assertNotSame(nodes, script.acquire());
+    }
+
+    @Test
+    public void snapshotTest() throws IOException {
+        String source = "class A { init(n) { this.n = n; } get() { return this.n; } }"
+                + " class B < A { get() { return super.get() * 2; } }"
+                + " fun counter() { var i = 0; fun inc() { i = i + 1; return i; } return inc; }"
+                + " fun loop(n) { if (n == 0) return \"done\"; return loop(n - 1); }"
+                + " var c = counter(); c(); print B(c()).get(); print loop(10000) + \"!\";"
+                + " var s; for (var i = 0; i < 5; i = i + 1) { if (i == 3) break; s = !s; } print s;";
+        Path dir = Files.createTempDirectory("lox");
+        Path file = dir.resolve("test.lox");
+        Path snapshot = dir.resolve("test.loxc");
+        try {
+            Files.write(file, source.getBytes(Charset.defaultCharset()));
+            LoxOutput output = LoxOutput.memory();
+            LoxSession session = new LoxEngine().newSession(output, output);
+            Assert.assertTrue(session.run(session.compile(file)));
+            Assert.assertTrue(Files.exists(snapshot));
+            Assert.assertEquals("4" + NL + "done!" + NL + "true" + NL, output.contents());
+
+            // a new engine has nothing cached, the script comes from the snapshot
+            LoxOutput loaded = LoxOutput.memory();
+            session = new LoxEngine().newSession(loaded, loaded);
+            Assert.assertTrue(session.run(session.compile(file)));
+            Assert.assertEquals(output.contents(), loaded.contents());
+
+            // a snapshot of other source is ignored and replaced
+            Assert.assertNotNull(ScriptSnapshot.read(snapshot, ScriptCache.hash(source)));
+            Assert.assertNull(ScriptSnapshot.read(snapshot, ScriptCache.hash("print 1;")));
+            Files.write(file, "print 1;".getBytes(Charset.defaultCharset()));
+            LoxOutput changed = LoxOutput.memory();
+            session = new LoxEngine().newSession(changed, changed);
+            Assert.assertTrue(session.run(session.compile(file)));
+            Assert.assertEquals("1" + NL, changed.contents());
+            Assert.assertNotNull(ScriptSnapshot.read(snapshot, ScriptCache.hash("print 1;")));
+        } finally {
+            Files.deleteIfExists(snapshot);
+            Files.deleteIfExists(file);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void corruptSnapshotTest() throws IOException {
+        String source = "class A { init(n) { this.n = n; } } fun f(a) { return A(a).n + 1.5; } print f(\"x\");";
+        String hash = ScriptCache.hash(source);
+        Path snapshot = Files.createTempFile("lox", ScriptSnapshot.EXTENSION);
+        try {
+            ScriptSnapshot.write(snapshot, hash, new LoxEngine().newSession().compile(source));
+            byte[] bytes = Files.readAllBytes(snapshot);
+            Assert.assertNotNull(ScriptSnapshot.read(snapshot, hash));
+
+            // whatever a broken snapshot holds, it is only a miss
+            for (int length = 0; length < bytes.length; length++) {
+                Files.write(snapshot, Arrays.copyOf(bytes, length));
+                Assert.assertNull(ScriptSnapshot.read(snapshot, hash));
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                byte[] corrupt = bytes.clone();
+                corrupt[i] ^= 0xff;
+                Files.write(snapshot, corrupt);
+                ScriptSnapshot.read(snapshot, hash);
+            }
+
+            // a count far beyond the file, right after the hash
+            byte[] huge = bytes.clone();
+            System.arraycopy(new byte[]{(byte) 0xfe, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07}, 0, huge, 72, 5);
+            Files.write(snapshot, huge);
+            Assert.assertNull(ScriptSnapshot.read(snapshot, hash));
+
+            // no strings, no globals, no slots, then one block nested in another a million times
+            byte[] deep = Arrays.copyOf(bytes, 72 + 3 + 2 * 1000000);
+            Arrays.fill(deep, 72, 75, (byte) 0);
+            for (int i = 75; i < deep.length; i += 2) {
+                deep[i] = 2;
+                deep[i + 1] = 1;
+            }
+            Files.write(snapshot, deep);
+            Assert.assertNull(ScriptSnapshot.read(snapshot, hash));
+        } finally {
+            Files.delete(snapshot);
+        }
+    }
+
+    @Test
+    public void parallelTest() throws Exception {
+        String source = "class Box { init(n) { this.n = n; } get() { return this.n; } }"
+                + " fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }"
+                + " var total = 0; for (var i = 0; i < 200; i = i + 1) { total = total + Box(id).get() + fib(10); }"
+                + " print total;";
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            LoxEngine engine = new LoxEngine();
+            List<Future<String>> results = new ArrayList<>();
+            for (int id = 0; id < 16; id++) {
+                int n = id;
+                results.add(pool.submit(() -> {
+                    LoxOutput output = LoxOutput.memory();
+                    LoxSession session = engine.newSession(output, output);
+                    session.run("var id = " + n + ";");
+                    session.run(source);
+                    // one compiled script run by every thread at once
+                    session.run(session.compile("var id = 1; " + source));
+                    return output.contents();
+                }));
+            }
+
+            for (int id = 0; id < results.size(); id++) {
+                Assert.assertEquals((200 * id + 200 * 55) + NL + (200 + 200 * 55) + NL, results.get(id).get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.billhuang.lox;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * @Description
+ * @Data 2022/3/22 11:05
+ * @Author huangshb
+ **/
+public class LoxOutputTest {
+    private static final String NL = System.lineSeparator();
+
+    @Test
+    public void flushTest() {
+        StringWriter target = new StringWriter();
+        LoxOutput line = new LoxOutput(target, 64, LoxOutput.Flush.LINE);
+        line.println("a");
+        Assert.assertEquals("a" + NL, target.toString());
+
+        target = new StringWriter();
+        LoxOutput size = new LoxOutput(target, 4, LoxOutput.Flush.SIZE);
+        size.println("a");
+        Assert.assertEquals("", target.toString());
+        size.println("bc");
+        Assert.assertEquals("a" + NL + "bc" + NL, target.toString());
+
+        target = new StringWriter();
+        LoxOutput exit = new LoxOutput(target, 1, LoxOutput.Flush.EXIT);
+        exit.println("a");
+        exit.println("b");
+        Assert.assertEquals("", target.toString());
+        exit.flush();
+        Assert.assertEquals("a" + NL + "b" + NL, target.toString());
+    }
+
+    @Test
+    public void redirectTest() throws IOException {
+        LoxOutput memory = LoxOutput.memory();
+        Lox.setOutput(memory);
+        try {
+            Lox.run("for (var i = 0; i < 3; i = i + 1) print i;");
+        } finally {
+            Lox.setOutput(LoxOutput.console(LoxOutput.Flush.SIZE));
+        }
+        Assert.assertEquals("0" + NL + "1" + NL + "2" + NL, memory.contents());
+
+        Path path = Files.createTempFile("lox", ".out");
+        try {
+            try (LoxOutput file = LoxOutput.file(path, 16, LoxOutput.Flush.SIZE)) {
+                file.println("\u00e9t\u00e9");
+            }
+            Assert.assertEquals("\u00e9t\u00e9" + NL, new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+        } finally {
+            Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.billhuang.lox;
+
+/**
+ * @Description Runs sources on a fresh session and collects what they print, for tests that
+ * compare against literal output.
+ * @Data 2022/3/26 16:10
+ * @Author huangshb
+ **/
+final class LoxRunner {
+    private LoxRunner() {
+    }
+
+    /**
+     * Everything the source prints, output and errors share one buffer so they stay in order.
+     */
+    static String run(String source) {
+        LoxOutput output = LoxOutput.memory();
+        new LoxEngine().newSession(output, output).run(source);
+        return output.contents();
+    }
+
+    /**
+     * The output of printing each line.
+     */
+    static String lines(String... lines) {
+        StringBuilder builder = new StringBuilder();
+        for (String line : lines) {
+            builder.append(line).append(System.lineSeparator());
+        }
+        return builder.toString();
+    }
+}
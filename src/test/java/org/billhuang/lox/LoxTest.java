@@ -25,6 +25,15 @@ public class LoxTest {
         Lox.runRepl(source);
     }
 
+    @Test
+    public void replRedefineTest() {
+        Lox.runRepl("var redefined = 1;");
+        Lox.runRepl("fun show() { print redefined; }");
+        Lox.runRepl("var redefined = \"two\";");
+        Lox.runRepl("show();");
+        Lox.runRepl("redefined + \"!\"");
+    }
+
     @Test
     public void runTest() {
         String source = "print \"one\";";
@@ -0,0 +1,63 @@
+package org.billhuang.lox;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @Description
+ * @Data 2022/3/26 14:40
+ * @Author huangshb
+ **/
+public class NodeCompilerTest {
+    @Test
+    public void specializationTest() {
+        // each site first sees numbers and then other types, so it has to leave its fast path
+        Assert.assertEquals(LoxRunner.lines("1", "false", "2", "true", "3", "false", "ab", "1.0b", "a2.0", "true",
+                "false", "true", "7", "Operands must be two numbers or two strings. \n[line 1 ]"),
+                LoxRunner.run("fun add(a, b) { return a + b; } fun same(a, b) { return a == b; }"
+                        + " for (var i = 0; i < 3; i = i + 1) { print add(i, 1); print same(i, 1); }"
+                        + " print add(\"a\", \"b\"); print add(1, \"b\"); print add(\"a\", 2); print same(nil, nil);"
+                        + " print same(1, nil); print same(\"x\", \"x\"); print add(add(1, 2) * 2, 1);"
+                        + " print add(nil, 1);"));
+        Assert.assertEquals(LoxRunner.lines("-4", "Operand must be a number. \n[line 1 ]"),
+                LoxRunner.run("fun neg(a) { return -a * 2; } print neg(2); print neg(\"x\");"));
+        Assert.assertEquals(LoxRunner.lines("true", "Operand must be a number. \n[line 1 ]"),
+                LoxRunner.run("fun lt(a, b) { return a < b; } print lt(1, 2); print lt(1, \"b\");"));
+        // a site that left its fast path stays correct when numbers come back
+        Assert.assertEquals(LoxRunner.lines("3", "ab", "7", "true", "true", "false"),
+                LoxRunner.run("fun add(a, b) { return a + b; } fun eq(a, b) { return a == b; } print add(1, 2);"
+                        + " print add(\"a\", \"b\"); print add(3, 4); print eq(1, 1); print eq(\"a\", \"a\");"
+                        + " print eq(1, 2);"));
+    }
+
+    @Test
+    public void unboxedSlotTest() {
+        // locals hold numbers unboxed until they are read as objects or get another type
+        Assert.assertEquals(LoxRunner.lines("20", "str20.0", "3", "nil", "19"),
+                LoxRunner.run("fun f() { var n = 0; for (var i = 0; i < 5; i = i + 1) { n = n + i * 2; } print n;"
+                        + " var s = n; n = \"str\"; print n + s; { var a = 1.5; a = a * 2; print a; }"
+                        + " { var c = nil; fun get() { return c; } print get(); } return s; } print f() - 1;"));
+        // a captured number is shared with the closure, and a slot reused by the next block starts over
+        Assert.assertEquals(LoxRunner.lines("3", "13", "x"),
+                LoxRunner.run("fun f() { var n = 1; fun add(d) { n = n + d; return n; } add(2); print n; print add(10);"
+                        + " { var a = 1; a = a + 1; } { var b = \"x\"; print b; } } f();"));
+    }
+
+    @Test
+    public void inlineTest() {
+        // small global functions are inlined, calls have to notice when the global changes
+        Assert.assertEquals(LoxRunner.lines("10", "7", "9", "Expected 2 arguments but got 3. \n[line 1 ]"),
+                LoxRunner.run("fun max(a, b) { return a > b ? a : b; } fun abs(x) { return x < 0 ? -x : x; }"
+                        + " fun f() { var s = 0; for (var i = -3; i < 3; i = i + 1) { s = s + max(abs(i), 1); }"
+                        + " return s; } print f(); print max(max(1, 5), abs(-7)); max = fun (a, b) { return a; };"
+                        + " print f(); print max(1, 2, 3);"));
+        Assert.assertEquals(LoxRunner.lines("4", "6", "0", "-1", "Operand must be a number. \n[line 1 ]"),
+                LoxRunner.run("fun twice(x) { return x * 2; } print twice(2); fun twice(x) { return x * 3; }"
+                        + " print twice(2); fun loop(n) { return n <= 0 ? 0 : loop(n - 1); } print loop(3); fun bad(x) { return -x; }"
+                        + " print bad(1); print bad(\"s\");"));
+        // an argument used twice in the body is still evaluated once
+        Assert.assertEquals(LoxRunner.lines("9", "3"),
+                LoxRunner.run("var n = 2; fun next() { n = n + 1; return n; } fun sq(x) { return x * x; }"
+                        + " fun f() { return sq(next()); } print f(); print n;"));
+    }
+}
@@ -0,0 +1,66 @@
+package org.billhuang.lox;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @Description
+ * @Data 2022/3/21 16:25
+ * @Author huangshb
+ **/
+public class OptimizerTest {
+    @Test
+    public void foldTest() {
+        Assert.assertEquals("86400.0", optimize("60 * 60 * 24"));
+        Assert.assertEquals("-9.0", optimize("(1 + 2) * -3"));
+        Assert.assertEquals("true", optimize("\"a\" + \"b\" == \"ab\""));
+        Assert.assertEquals("a1.0", optimize("\"a\" + 1"));
+        Assert.assertEquals("8.0", optimize("1 > 2 ? 3 : 4 * 2"));
+        Assert.assertEquals("2.0", optimize("true and 1 + 1"));
+        Assert.assertEquals("false", optimize("nil or false"));
+    }
+
+    @Test
+    public void runtimeErrorTest() {
+        // left for the runtime, which reports the error with its line
+        Assert.assertEquals("(/ 6.0 0.0)", optimize("(2 * 3) / (1 - 1)"));
+        Assert.assertEquals("(- a)", optimize("-\"a\""));
+        Assert.assertEquals("(* nil 2.0)", optimize("nil * (1 + 1)"));
+    }
+
+    @Test
+    public void eliminateTest() {
+        String source = "fun f() {\n"
+                + "  var unused = 1; var kept = g(); var read = 3;\n"
+                + "  { fun helper() {} }\n"
+                + "  return read;\n"
+                + "  print \"unreachable\";\n"
+                + "}\n"
+                + "fun g() { return 2; }\n"
+                + "fun dead() {}\n"
+                + "if (1 > 2) print 3; else print f();\n"
+                + "while (false) print 4;\n";
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+        Resolver resolver = new Resolver(new Globals());
+        resolver.resolve(statements);
+        Optimizer optimizer = new Optimizer(resolver, true);
+        statements = optimizer.optimize(statements);
+
+        Assert.assertEquals(Arrays.asList(
+                "[line 2] Removed unused variable 'unused'.",
+                "[line 3] Removed unused function 'helper'.",
+                "[line 4] Removed unreachable code after 'return'.",
+                "[line 8] Removed unused function 'dead'.",
+                "[line 9] Removed the then branch of an 'if' whose condition is always false.",
+                "[line 10] Removed a 'while' loop whose condition is always false."), optimizer.eliminated);
+        Assert.assertEquals(3, statements.size());
+    }
+
+    private String optimize(String source) {
+        Expr expr = (Expr) new Parser(new Scanner(source).scanTokens()).parseRepl();
+        return new AstPrinter().print(new Optimizer().optimize(expr));
+    }
+}
@@ -1,7 +1,14 @@
 package org.billhuang.lox;
 
+import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.List;
+
 /**
  * @Description
  * @Data 2022/2/23 11:07
@@ -14,4 +21,81 @@ public class ScannerTest {
         Scanner scanner = new Scanner(source);
 
     }
+
+    @Test
+    public void tokenBufferTest() {
+        String source = "var forty = 40.5;\nfor (fun_ = fun; !truth; forty = \"a\nb\") fals or orb;";
+        TokenBuffer buffer = new Scanner(source).scan();
+        TokenType[] types = {TokenType.VAR, TokenType.IDENTIFIER, TokenType.EQUAL, TokenType.NUMBER,
+                TokenType.SEMICOLON, TokenType.FOR, TokenType.LEFT_PAREN, TokenType.IDENTIFIER, TokenType.EQUAL,
+                TokenType.FUN, TokenType.SEMICOLON, TokenType.BANG, TokenType.IDENTIFIER, TokenType.SEMICOLON,
+                TokenType.IDENTIFIER, TokenType.EQUAL, TokenType.STRING, TokenType.RIGHT_PAREN,
+                TokenType.IDENTIFIER, TokenType.OR, TokenType.IDENTIFIER, TokenType.SEMICOLON, TokenType.EOF};
+        Assert.assertEquals(types.length, buffer.size());
+        for (int i = 0; i < types.length; i++) {
+            Assert.assertEquals(types[i], buffer.type(i));
+        }
+        Assert.assertEquals(3, buffer.line(buffer.size() - 1));
+
+        Token number = buffer.token(3);
+        Assert.assertEquals("40.5", number.lexeme);
+        Assert.assertEquals(40.5, number.literal);
+        Assert.assertSame(number, buffer.token(3));
+        Token string = buffer.token(16);
+        Assert.assertEquals("\"a\nb\"", string.lexeme);
+        Assert.assertEquals("a\nb", string.literal);
+        Assert.assertEquals(3, string.line);
+
+        // the same name is one string, keywords and punctuation need no text from the source
+        Assert.assertSame(buffer.token(1).lexeme, buffer.token(14).lexeme);
+        Assert.assertSame("for", buffer.token(5).lexeme);
+        Assert.assertSame(";", buffer.token(4).lexeme);
+
+        List<Token> tokens = new Scanner(source).scanTokens();
+        Assert.assertEquals(buffer.size(), tokens.size());
+        for (int i = 0; i < tokens.size(); i++) {
+            Assert.assertEquals(buffer.token(i).toString(), tokens.get(i).toString());
+            Assert.assertEquals(buffer.line(i), tokens.get(i).line);
+        }
+    }
+
+    @Test
+    public void streamTest() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        String source = "class Foo < Bar { init() { this.x = 12.25; } }\n/* a\n/* nested */ comment */"
+                + " var s = \"" + text + "\"; // the end\nprint s + 1e;\n@ while";
+        List<Token> expected = new Scanner(source).scanTokens();
+
+        // a reader that never hands out more than three characters, so lexemes cross reads
+        Reader reader = new FilterReader(new StringReader(source)) {
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                return super.read(buffer, offset, Math.min(length, 3));
+            }
+        };
+        TokenBuffer buffer = new Scanner(reader).scan();
+        Assert.assertEquals(0, buffer.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Token token = buffer.token(i);
+            Assert.assertEquals(expected.get(i).toString(), token.toString());
+            Assert.assertEquals(expected.get(i).line, token.line);
+            // the buffer keeps up with what was asked for, and past the end is the end
+            Assert.assertEquals(i + 1, buffer.size());
+        }
+        Assert.assertEquals(TokenType.EOF, buffer.type(expected.size() + 3));
+
+        // only the last few tokens are kept
+        Assert.assertEquals(TokenType.EOF, buffer.token(expected.size() - 1).type);
+        buffer.token(expected.size() - TokenBuffer.WINDOW + 1);
+        try {
+            buffer.token(expected.size() - TokenBuffer.WINDOW);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("Token " + (expected.size() - TokenBuffer.WINDOW) + " has left the window, "
+                    + expected.size() + " are scanned", e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,62 @@
+package org.billhuang.lox;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+/**
+ * @Description
+ * @Data 2022/3/26 10:15
+ * @Author huangshb
+ **/
+public class ShapeTest {
+    @Test
+    public void branchTest() {
+        Shape root = new Shape();
+        Shape a = root.withField("a");
+        Shape ab = a.withField("b");
+        // a second child of a takes the slot b has in the shared names
+        Shape ac = a.withField("c");
+        Shape abd = ab.withField("d");
+
+        Assert.assertSame(ab, a.withField("b"));
+        Assert.assertEquals(1, ab.offsetOf("b"));
+        Assert.assertEquals(1, ac.offsetOf("c"));
+        Assert.assertEquals(-1, ac.offsetOf("b"));
+        Assert.assertEquals(-1, ab.offsetOf("c"));
+        Assert.assertEquals(-1, a.offsetOf("b"));
+        Assert.assertEquals(2, abd.offsetOf("d"));
+        Assert.assertEquals(-1, ab.offsetOf("d"));
+
+        // more fields than the first names array holds
+        Shape shape = root;
+        for (int i = 0; i < 10; i++) {
+            shape = shape.withField("f" + i);
+        }
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(i, shape.offsetOf("f" + i));
+        }
+        Assert.assertEquals(0, a.offsetOf("a"));
+        Assert.assertEquals(-1, a.offsetOf("f1"));
+    }
+
+    @Test
+    public void instanceTest() {
+        LoxClass loxClass = new LoxClass("A", null, new HashMap<>());
+        LoxInstance large = new LoxInstance(loxClass);
+        for (int i = 0; i < 20; i++) {
+            large.set("f" + i, (double) i);
+        }
+        Assert.assertEquals(19.0, large.fields[large.shape.offsetOf("f19")]);
+
+        // an instance isn't sized for the largest one of its class
+        LoxInstance small = new LoxInstance(loxClass);
+        Assert.assertEquals(0, small.fields.length);
+        small.set("x", 1.0);
+        small.set("y", 2.0);
+        Assert.assertTrue(small.fields.length < 20);
+        Assert.assertEquals(2.0, small.fields[small.shape.offsetOf("y")]);
+        Assert.assertEquals(-1, small.shape.offsetOf("f0"));
+    }
+}